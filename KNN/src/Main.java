@@ -1,151 +1,1128 @@
 import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.*;
 import java.util.function.BiConsumer;
 import java.util.function.DoubleUnaryOperator;
+import java.util.stream.IntStream;
 
 public class Main {
+    /**
+     * A row of a {@link Dataset}, or a standalone query when it owns its attributes.
+     * The attributes live at {@code values[offset, offset + dim)}.
+     */
     static class Obj {
-        double[] attributes;
+        final double[] values;
+        final int offset;
+        final int dim;
         int classNum;
         int i;
 
-        Obj(double[] attributes, int classNum, int i) {
+        Obj(double[] values, int offset, int dim, int classNum, int i) {
+            this.values = values;
+            this.offset = offset;
+            this.dim = dim;
             this.classNum = classNum;
-            this.attributes = attributes;
             this.i = i;
         }
 
-        Obj(Obj element) {
-            this.i = element.i;
-            this.classNum = element.classNum;
-            this.attributes = new double[element.attributes.length];
-            System.arraycopy(element.attributes, 0, this.attributes, 0, element.attributes.length);
+        Obj(double[] attributes, int classNum, int i) {
+            this(attributes, 0, attributes.length, classNum, i);
+        }
+    }
+
+    /**
+     * Objects stored row-major in one contiguous array, so distance loops stream through
+     * memory instead of chasing one attribute array per object.
+     */
+    static final class Dataset {
+        final double[] values;
+        final int[] labels;
+        final int rows;
+        final int cols;
+
+        Dataset(int rows, int cols) {
+            this.rows = rows;
+            this.cols = cols;
+            this.values = new double[rows * cols];
+            this.labels = new int[rows];
+        }
+
+        int offset(int row) {
+            return row * cols;
+        }
+
+        void set(int row, int col, double value) {
+            values[row * cols + col] = value;
+        }
+
+        Obj row(int row) {
+            return new Obj(values, row * cols, cols, labels[row], row);
         }
     }
 
     private interface DistanceMetric {
-        double calc(Obj a, Obj b);
+        /**
+         * Distance between {@code a[aOffset, aOffset + dim)} and {@code b[bOffset, bOffset + dim)}.
+         */
+        double calc(double[] a, int aOffset, double[] b, int bOffset, int dim);
+
+        /**
+         * Cheaper value that orders pairs the same way as {@link #calc}; {@link #fromRank}
+         * turns it back into the distance. Use it only where the triangle inequality is not needed.
+         */
+        default double rank(double[] a, int aOffset, double[] b, int bOffset, int dim) {
+            return calc(a, aOffset, b, bOffset, dim);
+        }
+
+        default double fromRank(double rank) {
+            return rank;
+        }
+
+        default double calc(Obj a, Obj b) {
+            return calc(a.values, a.offset, b.values, b.offset, a.dim);
+        }
+
+        default double calc(Obj a, Dataset data, int row) {
+            return calc(a.values, a.offset, data.values, data.offset(row), a.dim);
+        }
+
+        default double rank(Obj a, Dataset data, int row) {
+            return rank(a.values, a.offset, data.values, data.offset(row), a.dim);
+        }
+
+        /**
+         * Distances from {@code u} to rows {@code [from, to)} of {@code data}, written to
+         * {@code out[0, to - from)}. Implementations override this with a loop over their own
+         * kernel so the per-pair call is monomorphic and can be inlined.
+         */
+        default void calcMany(Obj u, Dataset data, int from, int to, double[] out) {
+            for (int row = from; row < to; row++) {
+                out[row - from] = calc(u, data, row);
+            }
+        }
+
+        /**
+         * Same as {@link #calcMany} for {@link #rank}.
+         */
+        default void rankMany(Obj u, Dataset data, int from, int to, double[] out) {
+            for (int row = from; row < to; row++) {
+                out[row - from] = rank(u, data, row);
+            }
+        }
+
+        /**
+         * Distances from {@code u} to rows {@code rows[from, to)} of {@code data}, written to
+         * {@code out[from, to)}.
+         */
+        default void calcMany(Obj u, Dataset data, int[] rows, int from, int to, double[] out) {
+            for (int i = from; i < to; i++) {
+                out[i] = calc(u, data, rows[i]);
+            }
+        }
     }
 
+    /*
+     * The loops below are unrolled by four with independent accumulators so the JIT can keep
+     * them in vector registers; the tail is handled by a scalar loop.
+     */
+
     private static final class EuclideanMetric implements DistanceMetric {
         @Override
-        public double calc(Obj a, Obj b) {
-            double sum = 0;
-            for (int i = 0; i < a.attributes.length; i++) {
-                sum += Math.pow(a.attributes[i] - b.attributes[i], 2);
+        public double calc(double[] a, int aOffset, double[] b, int bOffset, int dim) {
+            return Math.sqrt(squared(a, aOffset, b, bOffset, dim));
+        }
+
+        @Override
+        public double rank(double[] a, int aOffset, double[] b, int bOffset, int dim) {
+            return squared(a, aOffset, b, bOffset, dim);
+        }
+
+        @Override
+        public void calcMany(Obj u, Dataset data, int from, int to, double[] out) {
+            for (int row = from; row < to; row++) {
+                out[row - from] = Math.sqrt(squared(u.values, u.offset, data.values, data.offset(row), u.dim));
+            }
+        }
+
+        @Override
+        public void rankMany(Obj u, Dataset data, int from, int to, double[] out) {
+            for (int row = from; row < to; row++) {
+                out[row - from] = squared(u.values, u.offset, data.values, data.offset(row), u.dim);
+            }
+        }
+
+        @Override
+        public void calcMany(Obj u, Dataset data, int[] rows, int from, int to, double[] out) {
+            for (int i = from; i < to; i++) {
+                out[i] = Math.sqrt(squared(u.values, u.offset, data.values, data.offset(rows[i]), u.dim));
             }
-            return Math.sqrt(sum);
+        }
+
+        private static double squared(double[] a, int aOffset, double[] b, int bOffset, int dim) {
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            for (; i + 3 < dim; i += 4) {
+                double d0 = a[aOffset + i] - b[bOffset + i];
+                double d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+                double d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+                double d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+                s0 += d0 * d0;
+                s1 += d1 * d1;
+                s2 += d2 * d2;
+                s3 += d3 * d3;
+            }
+            for (; i < dim; i++) {
+                double d = a[aOffset + i] - b[bOffset + i];
+                s0 += d * d;
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        @Override
+        public double fromRank(double rank) {
+            return Math.sqrt(rank);
         }
     }
 
     private static final class ManhattanDistance implements DistanceMetric {
         @Override
-        public double calc(Obj a, Obj b) {
-            double sum = 0;
-            for (int i = 0; i < a.attributes.length; i++) {
-                sum += Math.abs(a.attributes[i] - b.attributes[i]);
+        public double calc(double[] a, int aOffset, double[] b, int bOffset, int dim) {
+            return distance(a, aOffset, b, bOffset, dim);
+        }
+
+        @Override
+        public void calcMany(Obj u, Dataset data, int from, int to, double[] out) {
+            for (int row = from; row < to; row++) {
+                out[row - from] = distance(u.values, u.offset, data.values, data.offset(row), u.dim);
             }
-            return sum;
+        }
+
+        @Override
+        public void rankMany(Obj u, Dataset data, int from, int to, double[] out) {
+            calcMany(u, data, from, to, out);
+        }
+
+        @Override
+        public void calcMany(Obj u, Dataset data, int[] rows, int from, int to, double[] out) {
+            for (int i = from; i < to; i++) {
+                out[i] = distance(u.values, u.offset, data.values, data.offset(rows[i]), u.dim);
+            }
+        }
+
+        private static double distance(double[] a, int aOffset, double[] b, int bOffset, int dim) {
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            for (; i + 3 < dim; i += 4) {
+                s0 += Math.abs(a[aOffset + i] - b[bOffset + i]);
+                s1 += Math.abs(a[aOffset + i + 1] - b[bOffset + i + 1]);
+                s2 += Math.abs(a[aOffset + i + 2] - b[bOffset + i + 2]);
+                s3 += Math.abs(a[aOffset + i + 3] - b[bOffset + i + 3]);
+            }
+            for (; i < dim; i++) {
+                s0 += Math.abs(a[aOffset + i] - b[bOffset + i]);
+            }
+            return (s0 + s1) + (s2 + s3);
         }
     }
 
     private static final class ChebyshevDistance implements DistanceMetric {
         @Override
-        public double calc(Obj a, Obj b) {
-            double max = -1.;
-            for (int i = 0; i < a.attributes.length; i++) {
-                max = Math.max(Math.abs(a.attributes[i] - b.attributes[i]), max);
+        public double calc(double[] a, int aOffset, double[] b, int bOffset, int dim) {
+            return distance(a, aOffset, b, bOffset, dim);
+        }
+
+        @Override
+        public void calcMany(Obj u, Dataset data, int from, int to, double[] out) {
+            for (int row = from; row < to; row++) {
+                out[row - from] = distance(u.values, u.offset, data.values, data.offset(row), u.dim);
+            }
+        }
+
+        @Override
+        public void rankMany(Obj u, Dataset data, int from, int to, double[] out) {
+            calcMany(u, data, from, to, out);
+        }
+
+        @Override
+        public void calcMany(Obj u, Dataset data, int[] rows, int from, int to, double[] out) {
+            for (int i = from; i < to; i++) {
+                out[i] = distance(u.values, u.offset, data.values, data.offset(rows[i]), u.dim);
             }
-            return max;
+        }
+
+        private static double distance(double[] a, int aOffset, double[] b, int bOffset, int dim) {
+            double m0 = -1., m1 = -1., m2 = -1., m3 = -1.;
+            int i = 0;
+            for (; i + 3 < dim; i += 4) {
+                double d0 = Math.abs(a[aOffset + i] - b[bOffset + i]);
+                double d1 = Math.abs(a[aOffset + i + 1] - b[bOffset + i + 1]);
+                double d2 = Math.abs(a[aOffset + i + 2] - b[bOffset + i + 2]);
+                double d3 = Math.abs(a[aOffset + i + 3] - b[bOffset + i + 3]);
+                m0 = d0 > m0 ? d0 : m0;
+                m1 = d1 > m1 ? d1 : m1;
+                m2 = d2 > m2 ? d2 : m2;
+                m3 = d3 > m3 ? d3 : m3;
+            }
+            for (; i < dim; i++) {
+                double d = Math.abs(a[aOffset + i] - b[bOffset + i]);
+                m0 = d > m0 ? d : m0;
+            }
+            return Math.max(Math.max(m0, m1), Math.max(m2, m3));
         }
     }
 
-    private static double uniformKernel(double u) {
-        if (Math.abs(u) > 1) return 0;
-        return 0.5;
+    /**
+     * Kernel of the form {@code a + b|u| + cu^2} on {@code [-1, 1]} and zero outside; all three
+     * kernels we use have this shape.
+     */
+    private static final class PolynomialKernel implements DoubleUnaryOperator {
+        private final double a;
+        private final double b;
+        private final double c;
+
+        PolynomialKernel(double a, double b, double c) {
+            this.a = a;
+            this.b = b;
+            this.c = c;
+        }
+
+        @Override
+        public double applyAsDouble(double u) {
+            if (Math.abs(u) > 1) return 0;
+            return a + b * Math.abs(u) + c * u * u;
+        }
     }
 
-    private static double triangularKernel(double u) {
-        if (Math.abs(u) > 1) return 0;
-        return 1. -  Math.abs(u);
+    private static final PolynomialKernel UNIFORM_KERNEL = new PolynomialKernel(0.5, 0., 0.);
+    private static final PolynomialKernel TRIANGULAR_KERNEL = new PolynomialKernel(1., -1., 0.);
+    private static final PolynomialKernel EPANECHNIKOV_KERNEL = new PolynomialKernel(3. / 4., 0., -3. / 4.);
+
+    /**
+     * Bounded max-heap of the closest candidates seen so far. Indices and distances are kept
+     * in parallel primitive arrays so a query never boxes and never recomputes a distance.
+     * Candidates are ordered by (distance, index), so among equally distant objects the ones
+     * with smaller indices are kept, whatever order an index offers them in.
+     */
+    private static final class NeighbourHeap {
+        private final int[] index;
+        private final double[] dist;
+        private int size;
+
+        NeighbourHeap(int capacity) {
+            index = new int[capacity];
+            dist = new double[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int capacity() {
+            return index.length;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int index(int i) {
+            return index[i];
+        }
+
+        double dist(int i) {
+            return dist[i];
+        }
+
+        /**
+         * Distance a candidate has to beat to enter the heap.
+         */
+        double bound() {
+            return size < index.length ? Double.POSITIVE_INFINITY : dist[0];
+        }
+
+        void offer(int i, double d) {
+            if (size < index.length) {
+                index[size] = i;
+                dist[size] = d;
+                siftUp(size++);
+            } else if (d < dist[0] || (d == dist[0] && i < index[0])) {
+                index[0] = i;
+                dist[0] = d;
+                siftDown(0, size);
+            }
+        }
+
+        /**
+         * Replaces ranks collected with {@link DistanceMetric#rank} by the actual distances.
+         * The map is monotone, so the heap order is kept.
+         */
+        void mapDistances(DistanceMetric metricFunction) {
+            for (int i = 0; i < size; i++) {
+                dist[i] = metricFunction.fromRank(dist[i]);
+            }
+        }
+
+        /**
+         * Turns the heap into a list ordered by distance, nearest first.
+         */
+        void sortAscending() {
+            for (int last = size - 1; last > 0; last--) {
+                swap(0, last);
+                siftDown(0, last);
+            }
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!greater(i, parent)) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i, int n) {
+            while (true) {
+                int largest = i;
+                int l = 2 * i + 1;
+                int r = l + 1;
+                if (l < n && greater(l, largest)) largest = l;
+                if (r < n && greater(r, largest)) largest = r;
+                if (largest == i) {
+                    return;
+                }
+                swap(i, largest);
+                i = largest;
+            }
+        }
+
+        private boolean greater(int i, int j) {
+            return dist[i] > dist[j] || (dist[i] == dist[j] && index[i] > index[j]);
+        }
+
+        private void swap(int i, int j) {
+            int tmpIndex = index[i];
+            index[i] = index[j];
+            index[j] = tmpIndex;
+            double tmpDist = dist[i];
+            dist[i] = dist[j];
+            dist[j] = tmpDist;
+        }
+    }
+
+    private interface NeighbourIndex {
+        /**
+         * Offers every training object that may belong to the nearest neighbours of {@code u}
+         * to {@code heap}; heap capacity decides how many neighbours are kept. The training
+         * object with index {@code exclude} is skipped, pass -1 to keep them all.
+         */
+        void search(Obj u, int exclude, NeighbourHeap heap);
+    }
+
+    /**
+     * Plain selection over the whole training set: O(N log k) per query with no build cost,
+     * which beats the tree on small sets and on data it cannot prune.
+     */
+    private static final class LinearScan implements NeighbourIndex {
+        /**
+         * Rows per batched distance call; small enough for the block to stay in L1.
+         */
+        private static final int BLOCK_SIZE = 256;
+
+        private final DistanceMetric metricFunction;
+        private final Dataset X;
+
+        LinearScan(DistanceMetric metricFunction, Dataset x) {
+            this.metricFunction = metricFunction;
+            this.X = x;
+        }
+
+        @Override
+        public void search(Obj u, int exclude, NeighbourHeap heap) {
+            double[] block = new double[Math.min(BLOCK_SIZE, X.rows)];
+            for (int from = 0; from < X.rows; from += BLOCK_SIZE) {
+                int to = Math.min(from + BLOCK_SIZE, X.rows);
+                metricFunction.rankMany(u, X, from, to, block);
+                for (int i = from; i < to; i++) {
+                    if (i != exclude) {
+                        heap.offer(i, block[i - from]);
+                    }
+                }
+            }
+            heap.mapDistances(metricFunction);
+        }
+    }
+
+    /**
+     * Quickselect over {@code keys[left, right]}, moving {@code ids} along with the keys, so that
+     * position {@code n} ends up holding the key it would have in sorted order.
+     */
+    private static void select(double[] keys, int[] ids, int left, int right, int n, Random random) {
+        while (left < right) {
+            int pivotIndex = left + random.nextInt(right - left + 1);
+            double pivot = keys[pivotIndex];
+            swap(keys, ids, pivotIndex, right);
+            int store = left;
+            for (int i = left; i < right; i++) {
+                if (keys[i] < pivot) {
+                    swap(keys, ids, store++, i);
+                }
+            }
+            swap(keys, ids, store, right);
+            if (store == n) {
+                return;
+            } else if (n < store) {
+                right = store - 1;
+            } else {
+                left = store + 1;
+            }
+        }
+    }
+
+    private static void swap(double[] keys, int[] ids, int i, int j) {
+        double tmpKey = keys[i];
+        keys[i] = keys[j];
+        keys[j] = tmpKey;
+        int tmpId = ids[i];
+        ids[i] = ids[j];
+        ids[j] = tmpId;
+    }
+
+    /**
+     * Vantage-point tree over the training objects. Works with any {@link DistanceMetric}
+     * that satisfies the triangle inequality, so one index serves all three metrics.
+     * The tree is implicit: the node built over {@code ids[from, to)} keeps its vantage
+     * point at {@code ids[from]}, the inner half in {@code [from + 1, mid)} and the outer
+     * half in {@code [mid, to)}. Ranges of at most {@link #LEAF_SIZE} rows are leaves, scanned
+     * with one batched distance call over a copy of the training set stored in {@code ids}
+     * order.
+     */
+    private static final class VantagePointTree implements NeighbourIndex {
+        /**
+         * Seed of the vantage point choices, fixed so every build gives the same tree.
+         */
+        private static final long SEED = 1;
+        static final int LEAF_SIZE = 32;
+
+        private final DistanceMetric metricFunction;
+        private final Dataset X;
+        private final int[] ids;
+        private final double[] radius;
+        /**
+         * Row {@code i} holds training object {@code ids[i]}.
+         */
+        private final Dataset sorted;
+
+        VantagePointTree(DistanceMetric metricFunction, Dataset x) {
+            this.metricFunction = metricFunction;
+            this.X = x;
+            this.ids = new int[x.rows];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = i;
+            }
+            this.radius = new double[x.rows];
+            build(0, ids.length, new double[ids.length], new Random(SEED));
+            this.sorted = new Dataset(x.rows, x.cols);
+            for (int i = 0; i < ids.length; i++) {
+                System.arraycopy(x.values, x.offset(ids[i]), sorted.values, sorted.offset(i), x.cols);
+            }
+        }
+
+        private static int middle(int from, int to) {
+            return from + 1 + (to - from - 1) / 2;
+        }
+
+        private void build(int from, int to, double[] dist, Random random) {
+            if (to - from <= LEAF_SIZE) {
+                return;
+            }
+            swap(dist, ids, from, from + random.nextInt(to - from));
+            metricFunction.calcMany(X.row(ids[from]), X, ids, from + 1, to, dist);
+            int mid = middle(from, to);
+            select(dist, ids, from + 1, to - 1, mid, random);
+            radius[from] = dist[mid];
+            build(from + 1, mid, dist, random);
+            build(mid, to, dist, random);
+        }
+
+        @Override
+        public void search(Obj u, int exclude, NeighbourHeap heap) {
+            search(u, exclude, 0, ids.length, heap, new double[LEAF_SIZE]);
+        }
+
+        /**
+         * Whether searches for {@code capacity} neighbours of {@code queries} training objects,
+         * spread evenly over the set, compute distances to at most {@code maxShare} of it on
+         * average. Stops as soon as the answer is no.
+         */
+        boolean prunes(int queries, int capacity, double maxShare) {
+            NeighbourHeap heap = new NeighbourHeap(capacity);
+            double[] leaf = new double[LEAF_SIZE];
+            double budget = maxShare * queries * X.rows;
+            long visited = 0;
+            for (int q = 0; q < queries && visited <= budget; q++) {
+                int row = (int) ((long) q * X.rows / queries);
+                heap.clear();
+                visited += search(X.row(row), row, 0, ids.length, heap, leaf);
+            }
+            return visited <= budget;
+        }
+
+        /**
+         * Returns the number of distances computed.
+         */
+        private int search(Obj u, int exclude, int from, int to, NeighbourHeap heap, double[] leaf) {
+            if (to - from <= LEAF_SIZE) {
+                metricFunction.calcMany(u, sorted, from, to, leaf);
+                for (int i = from; i < to; i++) {
+                    if (ids[i] != exclude) {
+                        heap.offer(ids[i], leaf[i - from]);
+                    }
+                }
+                return to - from;
+            }
+            double d = metricFunction.calc(u, sorted, from);
+            if (ids[from] != exclude) {
+                heap.offer(ids[from], d);
+            }
+            int mid = middle(from, to);
+            double r = radius[from];
+            int visited = 1;
+            if (d < r) {
+                visited += search(u, exclude, from + 1, mid, heap, leaf);
+                if (d + heap.bound() >= r) {
+                    visited += search(u, exclude, mid, to, heap, leaf);
+                }
+            } else {
+                visited += search(u, exclude, mid, to, heap, leaf);
+                if (d - heap.bound() <= r) {
+                    visited += search(u, exclude, from + 1, mid, heap, leaf);
+                }
+            }
+            return visited;
+        }
     }
 
-    private static double epanechnikovKernel(double u) {
-        if (Math.abs(u) > 1) return 0;
-        return 3. / 4. * (1. - u * u);
+    /**
+     * Approximate index: a forest of random projection trees. Every tree splits its rows at the
+     * median of their projection onto a random direction until at most {@code leafSize} rows
+     * are left. A query descends each tree to a single leaf and ranks the union of those leaves
+     * exactly, widening to enclosing subtrees only when the leaves hold too few rows. A true
+     * neighbour is missed when every tree splits it away from the query before the leaves.
+     * More trees (or bigger leaves) buy recall at the price of latency.
+     */
+    private static final class RandomProjectionForest implements NeighbourIndex {
+        /**
+         * Seed the per-tree seeds are drawn from, fixed so every build gives the same forest.
+         */
+        private static final long SEED = 1;
+
+        private final DistanceMetric metricFunction;
+        private final Dataset X;
+        private final int leafSize;
+        private final ProjectionTree[] trees;
+
+        /**
+         * Node {@code v} is a leaf over {@code ids[from[v], to[v])} when {@code left[v] < 0};
+         * otherwise rows whose projection onto {@code normals[v * dim, (v + 1) * dim)} is below
+         * {@code threshold[v]} go to {@code left[v]}, the rest to {@code right[v]}.
+         */
+        private final class ProjectionTree {
+            final int[] ids;
+            int[] from = new int[16];
+            int[] to = new int[16];
+            int[] left = new int[16];
+            int[] right = new int[16];
+            double[] threshold = new double[16];
+            double[] normals = new double[16 * X.cols];
+            int size;
+
+            ProjectionTree(Random random) {
+                ids = new int[X.rows];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = i;
+                }
+                build(0, ids.length, random, new double[ids.length]);
+            }
+
+            private int newNode(int lo, int hi) {
+                if (size == from.length) {
+                    int capacity = size * 2;
+                    from = Arrays.copyOf(from, capacity);
+                    to = Arrays.copyOf(to, capacity);
+                    left = Arrays.copyOf(left, capacity);
+                    right = Arrays.copyOf(right, capacity);
+                    threshold = Arrays.copyOf(threshold, capacity);
+                    normals = Arrays.copyOf(normals, capacity * X.cols);
+                }
+                from[size] = lo;
+                to[size] = hi;
+                left[size] = -1;
+                right[size] = -1;
+                return size++;
+            }
+
+            private double project(int node, double[] values, int offset) {
+                double sum = 0;
+                int normal = node * X.cols;
+                for (int i = 0; i < X.cols; i++) {
+                    sum += normals[normal + i] * values[offset + i];
+                }
+                return sum;
+            }
+
+            private int build(int lo, int hi, Random random, double[] proj) {
+                int node = newNode(lo, hi);
+                if (hi - lo <= leafSize) {
+                    return node;
+                }
+                for (int i = 0; i < X.cols; i++) {
+                    normals[node * X.cols + i] = random.nextGaussian();
+                }
+                for (int i = lo; i < hi; i++) {
+                    proj[i] = project(node, X.values, X.offset(ids[i]));
+                }
+                int mid = lo + (hi - lo) / 2;
+                select(proj, ids, lo, hi - 1, mid, random);
+                threshold[node] = proj[mid];
+                int l = build(lo, mid, random, proj);
+                int r = build(mid, hi, random, proj);
+                left[node] = l;
+                right[node] = r;
+                return node;
+            }
+
+            /**
+             * Nodes from the root down to the leaf {@code u} falls into.
+             */
+            int[] path(Obj u) {
+                int[] path = new int[16];
+                int depth = 0;
+                int node = 0;
+                while (true) {
+                    if (depth == path.length) {
+                        path = Arrays.copyOf(path, 2 * depth);
+                    }
+                    path[depth++] = node;
+                    if (left[node] < 0) {
+                        return Arrays.copyOf(path, depth);
+                    }
+                    node = project(node, u.values, u.offset) < threshold[node] ? left[node] : right[node];
+                }
+            }
+        }
+
+        RandomProjectionForest(DistanceMetric metricFunction, Dataset x, int trees, int leafSize) {
+            checkParams(trees, leafSize);
+            this.metricFunction = metricFunction;
+            this.X = x;
+            this.leafSize = leafSize;
+            Random random = new Random(SEED);
+            long[] seeds = new long[trees];
+            for (int i = 0; i < trees; i++) {
+                seeds[i] = random.nextLong();
+            }
+            this.trees = IntStream.range(0, trees).parallel()
+                    .mapToObj(i -> new ProjectionTree(new Random(seeds[i])))
+                    .toArray(ProjectionTree[]::new);
+        }
+
+        static void checkParams(int trees, int leafSize) {
+            if (trees < 1) {
+                throw new IllegalArgumentException("trees must be at least 1: " + trees);
+            }
+            if (leafSize < 1) {
+                throw new IllegalArgumentException("leafSize must be at least 1: " + leafSize);
+            }
+        }
+
+        /**
+         * Ranks the union of the query's leaves. Leaves can hold fewer rows than the heap
+         * wants, so while the union is too small every tree widens its range to the parent of
+         * its current node, which adds the sibling subtree; at the root that is every row.
+         */
+        @Override
+        public void search(Obj u, int exclude, NeighbourHeap heap) {
+            int[][] paths = new int[trees.length][];
+            int[] level = new int[trees.length];
+            for (int t = 0; t < trees.length; t++) {
+                paths[t] = trees[t].path(u);
+                level[t] = paths[t].length - 1;
+            }
+            int wanted = Math.min(heap.capacity(), X.rows - (exclude >= 0 ? 1 : 0));
+            int[] candidates = collect(paths, level, exclude);
+            boolean widened = true;
+            while (candidates.length < wanted && widened) {
+                widened = false;
+                for (int t = 0; t < trees.length; t++) {
+                    if (level[t] > 0) {
+                        level[t]--;
+                        widened = true;
+                    }
+                }
+                candidates = collect(paths, level, exclude);
+            }
+            double[] dist = new double[candidates.length];
+            metricFunction.calcMany(u, X, candidates, 0, candidates.length, dist);
+            for (int i = 0; i < candidates.length; i++) {
+                heap.offer(candidates[i], dist[i]);
+            }
+        }
+
+        /**
+         * Distinct rows, {@code exclude} left out, under node {@code paths[t][level[t]]} of
+         * every tree {@code t}.
+         */
+        private int[] collect(int[][] paths, int[] level, int exclude) {
+            int count = 0;
+            for (int t = 0; t < trees.length; t++) {
+                int node = paths[t][level[t]];
+                count += trees[t].to[node] - trees[t].from[node];
+            }
+            int[] candidates = new int[count];
+            count = 0;
+            for (int t = 0; t < trees.length; t++) {
+                ProjectionTree tree = trees[t];
+                int node = paths[t][level[t]];
+                int n = tree.to[node] - tree.from[node];
+                System.arraycopy(tree.ids, tree.from[node], candidates, count, n);
+                count += n;
+            }
+            Arrays.sort(candidates);
+            int unique = 0;
+            for (int i = 0; i < count; i++) {
+                if (candidates[i] != exclude && (unique == 0 || candidates[unique - 1] != candidates[i])) {
+                    candidates[unique++] = candidates[i];
+                }
+            }
+            return Arrays.copyOf(candidates, unique);
+        }
     }
 
     protected static final class KNNClassifier {
+        /**
+         * Below this many training objects a linear scan is cheaper than building a tree.
+         */
+        private static final int LINEAR_SCAN_LIMIT = 256;
+        /**
+         * Training objects a new tree is probed with in {@link #buildIndex}.
+         */
+        private static final int PROBE_QUERIES = 64;
+        /**
+         * A tree query costs about twice a scanned row per distance, since the scan is
+         * sequential, batched and skips the square root; above this share of rows visited the
+         * scan wins.
+         */
+        private static final double MAX_VISITED_SHARE = 0.5;
+
         private final DistanceMetric metricFunction;
         private final DoubleUnaryOperator kernelFunction;
         private final int k;
-        private final Obj X[];
-        private final int y[];
+        private final Dataset X;
         private final int cnt;
+        private final NeighbourIndex index;
+        private final ThreadLocal<Scratch> scratch;
+
+        /**
+         * Per-thread query buffers. Queries never touch the training set, so a single
+         * classifier can serve any number of threads at once.
+         */
+        private static final class Scratch {
+            final NeighbourHeap heap;
+            final double[] votes;
+
+            Scratch(int capacity, int cnt) {
+                heap = new NeighbourHeap(capacity);
+                votes = new double[cnt + 1];
+            }
+        }
 
         int getAmountOfNeighbours() {
             return k;
         }
 
         void reportAllNeighbours(Obj u, int cnt, BiConsumer<Obj, Double> callback) {
-            Obj[] sortedUNeighbours = sort(u);
-            for (int i = 0; i < cnt; i++) {
-                Obj x = sortedUNeighbours[i];
-                double w = calcWeight(u, x, sortedUNeighbours);
-                callback.accept(x, w);
+            NeighbourHeap neighbours = nearestNeighbours(u, new NeighbourHeap(k + 2));
+            for (int i = 0; i < Math.min(cnt, neighbours.size()); i++) {
+                callback.accept(X.row(neighbours.index(i)), calcWeight(neighbours, i));
             }
-            if (cnt == 0) {
-                callback.accept(sortedUNeighbours[0], 0.);
+            if (cnt == 0 && neighbours.size() > 0) {
+                callback.accept(X.row(neighbours.index(0)), 0.);
             }
         }
 
-        double calcWeight(Obj u, Obj x, Obj[] obj) {
-            if ((k + 1) >= obj.length) {
+        /**
+         * Kernel weight of the {@code i}-th nearest neighbour; distances are normalized by
+         * the distance to the neighbour at index k + 1. If that distance is zero, every
+         * neighbour up to it coincides with the query and gets the full kernel weight.
+         */
+        double calcWeight(NeighbourHeap neighbours, int i) {
+            return weight(kernelFunction, k, neighbours.dist, 0, neighbours.size(), i);
+        }
+
+        /**
+         * Same as {@link #calcWeight} over a neighbour list stored at {@code dist[offset, offset + size)}.
+         */
+        static double weight(DoubleUnaryOperator kernelFunction, int k, double[] dist, int offset, int size, int i) {
+            if ((k + 1) >= size) {
                 return 0;
             }
-            return kernelFunction.applyAsDouble(metricFunction.calc(u, x) / metricFunction.calc(u, obj[k + 1]));
+            double h = dist[offset + k + 1];
+            return kernelFunction.applyAsDouble(h == 0 ? 0 : dist[offset + i] / h);
         }
 
-        private Obj[] sort(final Obj u) {
-            Arrays.sort(X, Comparator.comparingDouble(o -> metricFunction.calc(o, u)));
-            return X;
+        /**
+         * Kernel-weighted vote over a sorted neighbour list. Returns the winning class in
+         * {@code [1, cnt]}; ties go to the smaller class number.
+         */
+        static int vote(DoubleUnaryOperator kernelFunction, int k, int cnt, Dataset x,
+                        int[] index, double[] dist, int offset, int size, double[] votes) {
+            Arrays.fill(votes, 0.);
+            for (int j = 0; j < size; j++) {
+                votes[x.labels[index[offset + j]]] += weight(kernelFunction, k, dist, offset, size, j);
+            }
+            return bestClass(votes, cnt);
         }
 
-        int predict(Obj u) {
-            int begI;
-            begI = 1;
+        static int bestClass(double[] votes, int cnt) {
             double bestAns = -1.;
             int bestClassId = -1;
-            Obj[] sorted = sort(u);
             for (int i = 1; i <= cnt; i++) {
-                double ans = 0;
-                for (int j = begI; j < X.length; j++) {
-                    Obj x = sorted[j];
-                    if (y[x.classNum] == i) {
-                        ans += calcWeight(u, x, sorted);
-                    }
-                }
-                if (ans > bestAns) {
-                    bestAns = ans;
+                if (votes[i] > bestAns) {
+                    bestAns = votes[i];
                     bestClassId = i;
                 }
             }
             return bestClassId;
         }
 
-        KNNClassifier(DistanceMetric metricFunction, DoubleUnaryOperator kernelFunction, int k, Obj[] x, int[] y, int cnt) {
+        /**
+         * Only the first k + 2 neighbours are ever looked at, so that is all we select.
+         */
+        private NeighbourHeap nearestNeighbours(Obj u, NeighbourHeap heap) {
+            heap.clear();
+            index.search(u, -1, heap);
+            heap.sortAscending();
+            return heap;
+        }
+
+        int predict(Obj u) {
+            Scratch buffers = scratch.get();
+            NeighbourHeap neighbours = nearestNeighbours(u, buffers.heap);
+            return vote(kernelFunction, k, cnt, X, neighbours.index, neighbours.dist, 0, neighbours.size(), buffers.votes);
+        }
+
+        /**
+         * Predicts every query, spreading them over the common fork-join pool.
+         */
+        int[] predictAll(Obj[] queries) {
+            int[] predicted = new int[queries.length];
+            IntStream.range(0, queries.length).parallel().forEach(i -> predicted[i] = predict(queries[i]));
+            return predicted;
+        }
+
+        /**
+         * Exact index for queries keeping {@code capacity} neighbours. How much a vantage-point
+         * tree prunes depends on the intrinsic dimension of the data rather than on the column
+         * count, so the tree is probed with a few training objects and dropped for a linear
+         * scan when they visit too much of the set.
+         */
+        static NeighbourIndex buildIndex(DistanceMetric metricFunction, Dataset x, int capacity) {
+            if (x.rows <= LINEAR_SCAN_LIMIT) {
+                return new LinearScan(metricFunction, x);
+            }
+            VantagePointTree tree = new VantagePointTree(metricFunction, x);
+            return tree.prunes(PROBE_QUERIES, capacity, MAX_VISITED_SHARE) ? tree : new LinearScan(metricFunction, x);
+        }
+
+        /**
+         * Same classifier answering queries from a random projection forest instead of an exact
+         * index; see {@link RandomProjectionForest} for the meaning of the parameters.
+         */
+        KNNClassifier approximate(int trees, int leafSize) {
+            return new KNNClassifier(metricFunction, kernelFunction, k, X, cnt,
+                    new RandomProjectionForest(metricFunction, X, trees, leafSize));
+        }
+
+        KNNClassifier(DistanceMetric metricFunction, DoubleUnaryOperator kernelFunction, int k, Dataset x, int cnt) {
+            this(metricFunction, kernelFunction, k, x, cnt, buildIndex(metricFunction, x, k + 2));
+        }
+
+        private KNNClassifier(DistanceMetric metricFunction, DoubleUnaryOperator kernelFunction, int k, Dataset x, int cnt,
+                              NeighbourIndex index) {
             this.metricFunction = metricFunction;
             this.kernelFunction = kernelFunction;
             this.k = k;
             this.X = x;
-            this.y = y;
             this.cnt = cnt;
+            this.index = index;
+            this.scratch = ThreadLocal.withInitial(() -> new Scratch(k + 2, cnt));
         }
     }
 
+    /**
+     * Exhaustive search over metric x kernel x k, scored by leave-one-out F1. The neighbour
+     * list of every training object, with the object itself left out, is computed once per
+     * metric, deep enough for the largest k, and then shared by every kernel and k.
+     */
+    private static final class GridSearch {
+        private final Dataset X;
+        private final int cnt;
+        private final int maxK;
+
+        /**
+         * Sorted neighbour lists of all training objects, {@code width} entries per object.
+         */
+        private static final class NeighbourTable {
+            final int width;
+            final int[] index;
+            final double[] dist;
+
+            NeighbourTable(int n, int width) {
+                this.width = width;
+                this.index = new int[n * width];
+                this.dist = new double[n * width];
+            }
+        }
+
+        GridSearch(Dataset x, int cnt, int maxK) {
+            this.X = x;
+            this.cnt = cnt;
+            this.maxK = Math.min(x.rows, maxK);
+        }
+
+        private NeighbourTable neighbourTable(DistanceMetric metric) {
+            int width = Math.min(X.rows - 1, maxK + 2);
+            NeighbourIndex index = KNNClassifier.buildIndex(metric, X, Math.max(1, width));
+            NeighbourTable table = new NeighbourTable(X.rows, width);
+            if (width == 0) {
+                return table;
+            }
+            IntStream.range(0, X.rows).parallel().forEach(i -> {
+                NeighbourHeap heap = new NeighbourHeap(width);
+                index.search(X.row(i), i, heap);
+                heap.sortAscending();
+                System.arraycopy(heap.index, 0, table.index, i * width, width);
+                System.arraycopy(heap.dist, 0, table.dist, i * width, width);
+            });
+            return table;
+        }
+
+        /**
+         * Leave-one-out predictions of every training object for every k in {@code [1, maxK]}.
+         * Each vote sums kernel weights the way {@link KNNClassifier#predict} does, so the
+         * scores rank exactly the rule the returned classifier applies.
+         */
+        private int[][] predictAllK(NeighbourTable table, DoubleUnaryOperator kernel) {
+            int[][] predicted = new int[maxK][X.rows];
+            IntStream.range(0, X.rows).parallel().forEach(i -> {
+                double[] votes = new double[cnt + 1];
+                for (int k = 1; k <= maxK; k++) {
+                    predicted[k - 1][i] = KNNClassifier.vote(kernel, k, cnt, X, table.index, table.dist,
+                            i * table.width, Math.min(table.width, k + 2), votes);
+                }
+            });
+            return predicted;
+        }
+
+        private double report(int[] predicted) {
+            F1Evaluator evaluator = new F1Evaluator(cnt);
+            for (int i = 0; i < X.rows; i++) {
+                evaluator.addResult(X.labels[i], predicted[i]);
+            }
+            return evaluator.reportF1();
+        }
+
+        /**
+         * Returns the classifier with the F1 score closest to 1; ties go to the combination
+         * that comes first in metric, kernel, k order. Timings are reported to stderr.
+         */
+        KNNClassifier run(Map<String, DistanceMetric> metrics, Map<String, DoubleUnaryOperator> kernels) {
+            List<String> kernelNames = new ArrayList<>(kernels.keySet());
+            String bestMetric = null;
+            String bestKernel = null;
+            int bestK = -1;
+            double bestReport = Integer.MAX_VALUE;
+            for (Map.Entry<String, DistanceMetric> metric : metrics.entrySet()) {
+                long start = System.nanoTime();
+                NeighbourTable table = neighbourTable(metric.getValue());
+                long tableTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                double[] reports = new double[kernelNames.size() * maxK];
+                for (int kernel = 0; kernel < kernelNames.size(); kernel++) {
+                    int[][] predicted = predictAllK(table, kernels.get(kernelNames.get(kernel)));
+                    for (int k = 1; k <= maxK; k++) {
+                        reports[kernel * maxK + k - 1] = report(predicted[k - 1]);
+                    }
+                }
+                long evaluateTime = System.nanoTime() - start;
+                System.err.printf("%s: neighbour table %d ms, %d combinations %d ms%n",
+                        metric.getKey(), tableTime / 1_000_000, reports.length, evaluateTime / 1_000_000);
+
+                for (int c = 0; c < reports.length; c++) {
+                    if (Math.abs(1. - reports[c]) < Math.abs(1. - bestReport)) {
+                        bestReport = reports[c];
+                        bestMetric = metric.getKey();
+                        bestKernel = kernelNames.get(c / maxK);
+                        bestK = c % maxK + 1;
+                    }
+                }
+            }
+            if (bestMetric == null) {
+                return null;
+            }
+            System.err.printf("best: metric=%s kernel=%s k=%d F1=%.6f%n", bestMetric, bestKernel, bestK, bestReport);
+            return new KNNClassifier(metrics.get(bestMetric), kernels.get(bestKernel), bestK, X, cnt);
+        }
+    }
+
+    /**
+     * Compares an approximate classifier with the exact one on {@code queries}: share of equal
+     * predictions, share of true k nearest neighbours recovered, and time spent by each.
+     * The report goes to stderr.
+     */
+    private static void reportApproximation(KNNClassifier exact, KNNClassifier approximate, Dataset queries) {
+        Obj[] rows = new Obj[queries.rows];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = queries.row(i);
+        }
+        long start = System.nanoTime();
+        int[] exactPredicted = exact.predictAll(rows);
+        long exactTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        int[] approximatePredicted = approximate.predictAll(rows);
+        long approximateTime = System.nanoTime() - start;
+
+        int agreed = 0;
+        long found = 0;
+        long wanted = 0;
+        int k = exact.getAmountOfNeighbours();
+        for (int i = 0; i < rows.length; i++) {
+            if (exactPredicted[i] == approximatePredicted[i]) {
+                agreed++;
+            }
+            Set<Integer> truth = new HashSet<>();
+            exact.reportAllNeighbours(rows[i], k, (element, weight) -> truth.add(element.i));
+            int[] hits = new int[1];
+            approximate.reportAllNeighbours(rows[i], k, (element, weight) -> {
+                if (truth.contains(element.i)) hits[0]++;
+            });
+            found += hits[0];
+            wanted += truth.size();
+        }
+        System.err.printf("approximate: agreement %.4f, neighbour recall %.4f, exact %d ms, approximate %d ms%n",
+                rows.length == 0 ? 1. : (double) agreed / rows.length,
+                wanted == 0 ? 1. : (double) found / wanted,
+                exactTime / 1_000_000, approximateTime / 1_000_000);
+    }
+
     private static final class F1Evaluator {
         private double safeDivision(double a, double b) {
             if (b == 0) return 0;
@@ -209,30 +1186,134 @@ public class Main {
         }
     }
 
-    private static Obj[] normalizeAttributes(Obj[] X) {
-        int m = X[0].attributes.length;
-        int n = X.length;
-        Obj[] elements = Arrays.stream(X).map(Obj::new).toArray(Obj[]::new);
-        for (int i = 0; i < m; i++) {
-            double max = Double.MIN_VALUE;
-            double min = Double.MAX_VALUE;
-
-            for (int j = 0; j != n; j++) {
-                max = Math.max(elements[j].attributes[i], max);
-                min = Math.min(elements[j].attributes[i], min);
-            }
-            double d = max - min;
-            if (d == 0) {
-                for (Obj element : elements) {
-                    element.attributes[i] = 0;
+    /**
+     * Min-max scaling fitted on one dataset and reapplied to others. Fitting is a single
+     * row-major pass (split into chunks of rows and merged when the set is large); the
+     * scaling parameters can be saved and loaded so new queries are scaled like the training set.
+     */
+    static final class Normalizer {
+        static final int MAGIC = 0x4E4F524D;
+        static final int VERSION = 1;
+        /**
+         * Upper bound on the column count a normalizer file may declare.
+         */
+        private static final int MAX_COLS = 1 << 20;
+        private static final int CHUNK_ROWS = 4096;
+
+        private final double[] min;
+        private final double[] max;
+
+        private Normalizer(double[] min, double[] max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        private static Normalizer fit(Dataset data, int from, int to) {
+            double[] min = new double[data.cols];
+            double[] max = new double[data.cols];
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+            for (int row = from; row < to; row++) {
+                int offset = data.offset(row);
+                for (int j = 0; j < data.cols; j++) {
+                    double v = data.values[offset + j];
+                    if (v < min[j]) min[j] = v;
+                    if (v > max[j]) max[j] = v;
                 }
-            } else {
-                for (Obj element : elements) {
-                    element.attributes[i] = (element.attributes[i] - min) / d;
+            }
+            return new Normalizer(min, max);
+        }
+
+        private Normalizer merge(Normalizer other) {
+            double[] mergedMin = new double[min.length];
+            double[] mergedMax = new double[max.length];
+            for (int j = 0; j < min.length; j++) {
+                mergedMin[j] = Math.min(min[j], other.min[j]);
+                mergedMax[j] = Math.max(max[j], other.max[j]);
+            }
+            return new Normalizer(mergedMin, mergedMax);
+        }
+
+        static Normalizer fit(Dataset data) {
+            if (data.rows <= CHUNK_ROWS) {
+                return fit(data, 0, data.rows);
+            }
+            int chunks = (data.rows + CHUNK_ROWS - 1) / CHUNK_ROWS;
+            return IntStream.range(0, chunks).parallel()
+                    .mapToObj(c -> fit(data, c * CHUNK_ROWS, Math.min(data.rows, (c + 1) * CHUNK_ROWS)))
+                    .reduce(Normalizer::merge)
+                    .get();
+        }
+
+        private double scale(int j, double v) {
+            double d = max[j] - min[j];
+            return d == 0 ? 0 : (v - min[j]) / d;
+        }
+
+        /**
+         * Scales every row of {@code data} in place.
+         */
+        void transform(Dataset data) {
+            for (int row = 0; row < data.rows; row++) {
+                int offset = data.offset(row);
+                for (int j = 0; j < data.cols; j++) {
+                    data.values[offset + j] = scale(j, data.values[offset + j]);
+                }
+            }
+        }
+
+        /**
+         * Scaled copy of a single query; {@code u} itself is left untouched.
+         */
+        Obj transform(Obj u) {
+            double[] attributes = new double[u.dim];
+            for (int j = 0; j < u.dim; j++) {
+                attributes[j] = scale(j, u.values[u.offset + j]);
+            }
+            return new Obj(attributes, u.classNum, u.i);
+        }
+
+        /**
+         * Writes the ranges behind a magic number and a format version, so that {@link #load}
+         * can reject files that are not normalizers or come from an incompatible release.
+         */
+        void save(DataOutput out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(min.length);
+            for (int j = 0; j < min.length; j++) {
+                out.writeDouble(min[j]);
+                out.writeDouble(max[j]);
+            }
+        }
+
+        /**
+         * Reads ranges written by {@link #save}; a corrupt file fails with an IOException
+         * instead of loading ranges that would scale to NaN.
+         */
+        static Normalizer load(DataInput in) throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a normalizer file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported normalizer version " + version);
+            }
+            int cols = in.readInt();
+            if (cols < 0 || cols > MAX_COLS) {
+                throw new IOException("corrupt normalizer: " + cols + " columns");
+            }
+            double[] min = new double[cols];
+            double[] max = new double[cols];
+            for (int j = 0; j < cols; j++) {
+                min[j] = in.readDouble();
+                max[j] = in.readDouble();
+                if (!(min[j] <= max[j])) {
+                    throw new IOException("corrupt normalizer: column " + j + " has range [" + min[j] + ", " + max[j] + "]");
                 }
             }
+            return new Normalizer(min, max);
         }
-        return elements;
     }
 
     private static BufferedReader br;
@@ -251,6 +1332,22 @@ public class Main {
     }
 
     public static void main(String args[]) {
+        boolean approx = false;
+        int approxTrees = 0;
+        int leafSize = 32;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--approx-trees=")) {
+                approx = true;
+                approxTrees = Integer.parseInt(value);
+            } else if (arg.startsWith("--leaf-size=")) {
+                leafSize = Integer.parseInt(value);
+            }
+        }
+        if (approx) {
+            RandomProjectionForest.checkParams(approxTrees, leafSize);
+        }
+
         br = new BufferedReader(new InputStreamReader(System.in));
         out = new PrintWriter(System.out);
 
@@ -258,66 +1355,48 @@ public class Main {
         int K = Integer.parseInt(nextToken());
         int N = Integer.parseInt(nextToken());
 
-        Obj[] attributesTrain = new Obj[N];
-        int[] labelsTrain = new int[N];
+        Dataset attributesTrain = new Dataset(N, M);
         for (int i = 0; i < N; i++) {
-            double[] attributes = new double[M];
             for (int j = 0; j < M; j++) {
-                attributes[j] = Integer.parseInt(nextToken());
+                attributesTrain.set(i, j, Integer.parseInt(nextToken()));
             }
-            int c = Integer.parseInt(nextToken());
-            attributesTrain[i] = new Obj(attributes, c, i);
-            labelsTrain[i] = c;
+            attributesTrain.labels[i] = Integer.parseInt(nextToken());
         }
 
         int Q = Integer.parseInt(nextToken());
-        Obj[] attributesTest = new Obj[Q];
+        Dataset attributesTest = new Dataset(Q, M);
         for (int i = 0; i < Q; i++) {
-            double[] attributes = new double[M];
             for (int j = 0; j < M; j++) {
-                attributes[j] = Integer.parseInt(nextToken());
+                attributesTest.set(i, j, Integer.parseInt(nextToken()));
             }
-            attributesTest[i] = new Obj(attributes, -1, i);
+            attributesTest.labels[i] = -1;
         }
 
-        ArrayList<DistanceMetric> metrics = new ArrayList<>();
-        metrics.add(new EuclideanMetric());
-        metrics.add(new ManhattanDistance());
-        metrics.add(new ChebyshevDistance());
+        Map<String, DistanceMetric> metrics = new LinkedHashMap<>();
+        metrics.put("euclidean", new EuclideanMetric());
+        metrics.put("manhattan", new ManhattanDistance());
+        metrics.put("chebyshev", new ChebyshevDistance());
 
-        ArrayList<DoubleUnaryOperator> kernels = new ArrayList<>();
-        kernels.add(Main::uniformKernel);
-        kernels.add(Main::triangularKernel);
-        kernels.add(Main::epanechnikovKernel);
+        Map<String, DoubleUnaryOperator> kernels = new LinkedHashMap<>();
+        kernels.put("uniform", UNIFORM_KERNEL);
+        kernels.put("triangular", TRIANGULAR_KERNEL);
+        kernels.put("epanechnikov", EPANECHNIKOV_KERNEL);
 
-        KNNClassifier bestParams = null;
-        Obj[] attributesTrainNorm = normalizeAttributes(attributesTrain);
-        double bestReport = Integer.MAX_VALUE;
-        for (DistanceMetric metric : metrics) {
-            for (DoubleUnaryOperator kernel : kernels) {
-                for (int k = 1; k <= Math.min(attributesTrainNorm.length, 20); k++) {
-                    KNNClassifier estimator = new KNNClassifier(metric, kernel, k, attributesTrainNorm, labelsTrain, K);
+        Normalizer normalizer = Normalizer.fit(attributesTrain);
+        normalizer.transform(attributesTrain);
+        KNNClassifier bestParams = new GridSearch(attributesTrain, K, 20).run(metrics, kernels);
 
-                    F1Evaluator evaluator = new F1Evaluator(K);
-                    for (int i = 0; i < attributesTrainNorm.length; i++) {
-                        int predicted = estimator.predict(attributesTrainNorm[i]);
-                        evaluator.addResult(labelsTrain[i], predicted);
-                    }
-                    double curReport = evaluator.reportF1();
-                    if (Math.abs(1. - curReport) < Math.abs(1. - bestReport)) {
-                        bestReport = curReport;
-                        bestParams = estimator;
-                    }
-                }
-            }
+        normalizer.transform(attributesTest);
+        if (approx) {
+            KNNClassifier approximate = bestParams.approximate(approxTrees, leafSize);
+            reportApproximation(bestParams, approximate, attributesTest);
+            bestParams = approximate;
         }
-
-        Obj[] attributesTestNorm = normalizeAttributes(attributesTest);
-        for (Obj anAttributesTest : attributesTestNorm) {
+        for (int i = 0; i < attributesTest.rows; i++) {
             int neighbours = bestParams.getAmountOfNeighbours();
             out.print(neighbours);
             out.print(" ");
-            bestParams.reportAllNeighbours(anAttributesTest, neighbours, (element, weight) -> {
+            bestParams.reportAllNeighbours(attributesTest.row(i), neighbours, (element, weight) -> {
                 out.print(element.i + 1);
                 out.print(" ");
                 out.print(String.format("%.20f", weight));
@@ -1,107 +1,756 @@
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
 
 public class NaiveBayes {
-    public static class Bayes {
+    /**
+     * Open-addressing hash table from token id to a dense slot, slots handed out in order of
+     * first appearance, so per-class word counts can be plain arrays indexed by slot.
+     */
+    static final class Vocabulary {
+        private int[] keys = new int[16];
+        /**
+         * Slot of the token in {@code keys} at the same position plus one; zero marks a free
+         * position.
+         */
+        private int[] slots = new int[16];
+        /**
+         * Token of every slot.
+         */
+        private int[] tokens = new int[16];
+        private int size = 0;
 
-        private int numOfAllMessages = 0;
-        private int[][] featureMatrix;
-        private int[] LabelVector;
+        int size() {
+            return size;
+        }
 
-        private static BufferedReader br;
-        private static StringTokenizer in;
+        int token(int slot) {
+            return tokens[slot];
+        }
 
-        Bayes() {
-            br = new BufferedReader(new InputStreamReader(System.in));
+        /**
+         * Slot of the token, or -1 if it has never been added.
+         */
+        int slotOf(int token) {
+            return slotOf(keys, slots, token);
+        }
+
+        private static int slotOf(int[] keys, int[] slots, int token) {
+            int mask = keys.length - 1;
+            for (int i = hash(token) & mask; slots[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == token) {
+                    return slots[i] - 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * The tokens added so far, readable from other threads while this vocabulary keeps
+         * growing, without copying it. Positions are never freed and a rehash moves the
+         * writer to new arrays, so the probe sequence of every token in the prefix only
+         * crosses positions filled before the prefix was taken; a racy read of a later entry
+         * can only yield a slot past the prefix, which reads as unseen. The prefix must reach
+         * other threads through a safe publication, e.g. a volatile field.
+         */
+        Prefix prefix() {
+            return new Prefix(keys, slots, size);
         }
 
-        static HashMap<Integer, Integer> hashSpamWords;
-        static HashMap<Integer, Integer> hashLegalWords;
+        static final class Prefix {
+            private final int[] keys;
+            private final int[] slots;
+            private final int size;
+
+            private Prefix(int[] keys, int[] slots, int size) {
+                this.keys = keys;
+                this.slots = slots;
+                this.size = size;
+            }
+
+            int size() {
+                return size;
+            }
 
-        static int numOfSpamMessages = 0;
-        static int numOfSpamWords = 0;
-        static int numOfLegalMessages = 0;
-        static int numOfLegalWords = 0;
-        static int numOfUniqWords = 0;
+            /**
+             * Slot of the token, or -1 if it was not added before the prefix was taken.
+             */
+            int slotOf(int token) {
+                int slot = Vocabulary.slotOf(keys, slots, token);
+                return slot < size ? slot : -1;
+            }
+        }
 
-        private void addWord(HashMap<Integer, Integer> hashWords, int[] words, boolean isSpam) {
-            for (int sw : words) {
-                if (!hashSpamWords.containsKey(sw) && !hashLegalWords.containsKey(sw)) {
-                    numOfUniqWords++;
+        /**
+         * Slot of the token, giving it the next free slot if it is new; a single probe
+         * sequence either way.
+         */
+        int add(int token) {
+            int mask = keys.length - 1;
+            int i = hash(token) & mask;
+            for (; slots[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == token) {
+                    return slots[i] - 1;
                 }
-                if (hashWords.containsKey(sw)) {
-                    hashWords.put(sw, hashWords.get(sw) + 1);
-                } else {
-                    hashWords.put(sw, 1);
+            }
+            keys[i] = token;
+            if (size == tokens.length) {
+                tokens = Arrays.copyOf(tokens, 2 * size);
+            }
+            tokens[size] = token;
+            slots[i] = ++size;
+            if (2 * size > keys.length) {
+                rehash();
+            }
+            return size - 1;
+        }
+
+        Vocabulary copy() {
+            Vocabulary copy = new Vocabulary();
+            copy.keys = keys.clone();
+            copy.slots = slots.clone();
+            copy.tokens = tokens.clone();
+            copy.size = size;
+            return copy;
+        }
+
+        private void rehash() {
+            int[] oldKeys = keys;
+            int[] oldSlots = slots;
+            keys = new int[2 * oldKeys.length];
+            slots = new int[2 * oldKeys.length];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldSlots[j] != 0) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (slots[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    slots[i] = oldSlots[j];
                 }
-                if (isSpam)
-                    numOfSpamWords++;
-                else
-                    numOfLegalWords++;
+            }
+        }
+
+        private static int hash(int token) {
+            int h = token * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
 
+    /**
+     * Word and message counts per class, gathered while training; {@link #freeze} turns them
+     * into a {@link Model}. Counts of disjoint parts of a corpus {@link #merge} into the
+     * counts of the whole, in any order and grouping, which is how training is sharded
+     * across threads here and across machines through {@link #save} and {@link #load}.
+     * Not safe for concurrent use.
+     */
+    static final class Counts {
+        static final int MAGIC = 0x4E424354;
+        static final int VERSION = 1;
+        /**
+         * Upper bound on the class count a counts file may declare.
+         */
+        private static final int MAX_CLASSES = 1 << 16;
+
+        final int classes;
+        final Vocabulary vocabulary = new Vocabulary();
+        /**
+         * {@code words[c][slot]}: occurrences in class {@code c} of the word in that slot of
+         * {@link #vocabulary}.
+         */
+        int[][] words;
+        final long[] wordsOf;
+        final int[] messagesOf;
+        int messages = 0;
+
+        Counts(int classes) {
+            this.classes = classes;
+            this.words = new int[classes][16];
+            this.wordsOf = new long[classes];
+            this.messagesOf = new int[classes];
+        }
+
+        void add(int cl, int[] tokens) {
+            for (int token : tokens) {
+                int slot = vocabulary.add(token);
+                if (slot == words[cl].length) {
+                    for (int c = 0; c < classes; c++) {
+                        words[c] = Arrays.copyOf(words[c], 2 * slot);
+                    }
+                }
+                words[cl][slot]++;
             }
-            if (isSpam)
-                numOfSpamMessages++;
-            else
-                numOfLegalMessages++;
+            wordsOf[cl] += tokens.length;
+            messagesOf[cl]++;
+            messages++;
         }
 
-        void train() {
-            hashSpamWords = new HashMap<>();
-            hashLegalWords = new HashMap<>();
+        /**
+         * Adds another part's counts to these and returns them; slots are matched by token.
+         */
+        Counts merge(Counts other) {
+            if (other.classes != classes) {
+                throw new IllegalArgumentException("cannot merge counts of " + other.classes + " classes into " + classes);
+            }
+            for (int slot = 0; slot < other.vocabulary.size(); slot++) {
+                int mine = vocabulary.add(other.vocabulary.token(slot));
+                if (mine >= words[0].length) {
+                    for (int c = 0; c < classes; c++) {
+                        words[c] = Arrays.copyOf(words[c], 2 * mine);
+                    }
+                }
+                for (int c = 0; c < classes; c++) {
+                    words[c][mine] += other.words[c][slot];
+                }
+            }
+            for (int c = 0; c < classes; c++) {
+                wordsOf[c] += other.wordsOf[c];
+                messagesOf[c] += other.messagesOf[c];
+            }
+            messages += other.messages;
+            return this;
+        }
 
-            for (int i = 0; i < numOfAllMessages; i++) {
-                if (LabelVector[i] == 0) {
-                    addWord(hashSpamWords, featureMatrix[i], true);
+        /**
+         * Counts of a labelled corpus, built as shards of at most {@code shardSize} messages
+         * on the fork-join pool and merged pairwise.
+         */
+        static Counts count(int classes, int[][] messages, int[] labels, int shardSize) {
+            int shards = (messages.length + shardSize - 1) / shardSize;
+            return IntStream.range(0, shards).parallel()
+                    .mapToObj(shard -> {
+                        Counts counts = new Counts(classes);
+                        for (int i = shard * shardSize; i < Math.min(messages.length, (shard + 1) * shardSize); i++) {
+                            counts.add(labels[i], messages[i]);
+                        }
+                        return counts;
+                    })
+                    .reduce(Counts::merge)
+                    .orElseGet(() -> new Counts(classes));
+        }
+
+        /**
+         * Writes the counts behind a magic number and a format version, so that {@link #load}
+         * can reject files that are not counts or come from an incompatible release.
+         */
+        void save(DataOutput out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(classes);
+            out.writeInt(messages);
+            for (int c = 0; c < classes; c++) {
+                out.writeInt(messagesOf[c]);
+                out.writeLong(wordsOf[c]);
+            }
+            out.writeInt(vocabulary.size());
+            for (int slot = 0; slot < vocabulary.size(); slot++) {
+                out.writeInt(vocabulary.token(slot));
+                for (int c = 0; c < classes; c++) {
+                    out.writeInt(words[c][slot]);
                 }
+            }
+        }
 
-                else if (LabelVector[i] == 1) {
-                    addWord(hashLegalWords, featureMatrix[i], false);
+        /**
+         * Reads counts written by {@link #save}. Arrays grow as words are read rather than
+         * being sized from the file, and the totals are checked against the per-word counts,
+         * so a corrupt file fails with an IOException instead of loading wrong counts.
+         */
+        static Counts load(DataInput in) throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a naive Bayes counts file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported naive Bayes counts version " + version);
+            }
+            int classes = in.readInt();
+            if (classes < 1 || classes > MAX_CLASSES) {
+                throw new IOException("corrupt naive Bayes counts: " + classes + " classes");
+            }
+            Counts counts = new Counts(classes);
+            counts.messages = in.readInt();
+            long messages = 0;
+            for (int c = 0; c < classes; c++) {
+                counts.messagesOf[c] = in.readInt();
+                counts.wordsOf[c] = in.readLong();
+                if (counts.messagesOf[c] < 0 || counts.wordsOf[c] < 0) {
+                    throw new IOException("corrupt naive Bayes counts: negative totals");
+                }
+                messages += counts.messagesOf[c];
+            }
+            if (messages != counts.messages) {
+                throw new IOException("corrupt naive Bayes counts: message totals disagree");
+            }
+            int uniq = in.readInt();
+            if (uniq < 0) {
+                throw new IOException("corrupt naive Bayes counts: " + uniq + " words");
+            }
+            long[] wordsOf = new long[classes];
+            for (int slot = 0; slot < uniq; slot++) {
+                if (counts.vocabulary.add(in.readInt()) != slot) {
+                    throw new IOException("corrupt naive Bayes counts: repeated word");
+                }
+                if (slot == counts.words[0].length) {
+                    for (int c = 0; c < classes; c++) {
+                        counts.words[c] = Arrays.copyOf(counts.words[c], 2 * slot);
+                    }
+                }
+                for (int c = 0; c < classes; c++) {
+                    int count = in.readInt();
+                    if (count < 0) {
+                        throw new IOException("corrupt naive Bayes counts: negative word count");
+                    }
+                    counts.words[c][slot] = count;
+                    wordsOf[c] += count;
                 }
             }
+            if (!Arrays.equals(wordsOf, counts.wordsOf)) {
+                throw new IOException("corrupt naive Bayes counts: word totals disagree");
+            }
+            return counts;
         }
 
-        void test(int[][] input) {
-            for (int[] l : input) {
+        /**
+         * Immutable model scoring with these counts. {@code priorWeights[c]} scales the prior
+         * of class {@code c} before its logarithm is taken; null means plain priors.
+         */
+        Model freeze(double[] priorWeights) {
+            int uniq = vocabulary.size();
+            double[] logProb = new double[uniq * classes];
+            double[] unseen = new double[classes];
+            double[] logPrior = new double[classes];
+            for (int c = 0; c < classes; c++) {
+                double denominator = wordsOf[c] + uniq;
+                for (int slot = 0; slot < uniq; slot++) {
+                    logProb[slot * classes + c] = Math.log((words[c][slot] + 1) / denominator);
+                }
+                unseen[c] = Math.log(1 / denominator);
+                logPrior[c] = Math.log((double) messagesOf[c] / messages * (priorWeights == null ? 1 : priorWeights[c]));
+            }
+            return new Model(vocabulary.copy(), logProb, unseen, logPrior);
+        }
+    }
+
+    /**
+     * Trained multinomial naive Bayes model over any number of classes. It is immutable, so
+     * any number of threads can score against it, and any number of models can coexist.
+     */
+    static final class Model {
+        private final Vocabulary vocabulary;
+        private final int classes;
+        /**
+         * {@code logProb[slot * classes + c]}: smoothed log-probability of the word in that
+         * vocabulary slot under class {@code c}, the classes of one word side by side so a
+         * token's scores are read together. {@code unseen[c]} is the value for a word never
+         * seen in training.
+         */
+        private final double[] logProb;
+        private final double[] unseen;
+        private final double[] logPrior;
+
+        private Model(Vocabulary vocabulary, double[] logProb, double[] unseen, double[] logPrior) {
+            this.vocabulary = vocabulary;
+            this.classes = logPrior.length;
+            this.logProb = logProb;
+            this.unseen = unseen;
+            this.logPrior = logPrior;
+        }
+
+        int classes() {
+            return classes;
+        }
 
-                double SpamProb = Math.log((double)numOfSpamMessages / numOfAllMessages * 0);
-                for (int aL : l) {
-                    double pi = 0;
-                    if (hashSpamWords.get(aL) != null) {
-                        pi = (double) (hashSpamWords.get(aL) + 1) / (numOfSpamWords + numOfUniqWords);
-                    } else {
-                        pi = (double) (1) / (numOfSpamWords + numOfUniqWords);
+        /**
+         * Log-posterior of every class, up to a shared constant.
+         */
+        double[] scores(int[] tokens) {
+            double[] score = logPrior.clone();
+            for (int token : tokens) {
+                int slot = vocabulary.slotOf(token);
+                if (slot < 0) {
+                    for (int c = 0; c < classes; c++) {
+                        score[c] += unseen[c];
+                    }
+                } else {
+                    int base = slot * classes;
+                    for (int c = 0; c < classes; c++) {
+                        score[c] += logProb[base + c];
                     }
-                    SpamProb = SpamProb + Math.log(pi);
                 }
+            }
+            return score;
+        }
 
-                double LegalProb = Math.log((double)numOfLegalMessages / numOfAllMessages   );
-                for (int aL : l) {
-                    double pi;
-                    if (hashLegalWords.get(aL) != null) {
-                        pi = (double) (hashLegalWords.get(aL) + 1) / (numOfLegalWords + numOfUniqWords);
-                    } else {
-                        pi = (double) (1) / (numOfLegalWords + numOfUniqWords);
+        /**
+         * Most likely class; ties go to the larger class index.
+         */
+        int classify(int[] tokens) {
+            return argmax(scores(tokens));
+        }
+    }
+
+    /**
+     * Index of the largest score; ties go to the larger index.
+     */
+    private static int argmax(double[] score) {
+        int best = 0;
+        for (int c = 1; c < score.length; c++) {
+            if (score[c] >= score[best]) {
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Growable array of doubles in fixed-size pages, so that versions of it can be published
+     * cheaply: {@link #publish} hands out the current page table, and later writes copy only
+     * the pages they land on, and the table once, instead of the whole array. Published
+     * tables are never written again. Not safe for concurrent writers.
+     */
+    static final class PagedDoubles {
+        private static final int PAGE_BITS = 10;
+        private static final int PAGE = 1 << PAGE_BITS;
+
+        private double[][] pages = {new double[PAGE]};
+        /**
+         * Page {@code p} may be written in place iff {@code owner[p] == version}, i.e. it was
+         * copied or created since the last {@link #publish}.
+         */
+        private long[] owner = {1};
+        private long version = 1;
+        private boolean tableShared = false;
+
+        static double get(double[][] pages, int i) {
+            return pages[i >>> PAGE_BITS][i & (PAGE - 1)];
+        }
+
+        double get(int i) {
+            return get(pages, i);
+        }
+
+        void set(int i, double value) {
+            int p = i >>> PAGE_BITS;
+            if (p >= pages.length) {
+                grow(p + 1);
+            }
+            if (owner[p] != version) {
+                if (tableShared) {
+                    pages = pages.clone();
+                    tableShared = false;
+                }
+                pages[p] = pages[p].clone();
+                owner[p] = version;
+            }
+            pages[p][i & (PAGE - 1)] = value;
+        }
+
+        /**
+         * Current contents for {@link #get(double[][], int)}; they stay as they are whatever
+         * is written afterwards.
+         */
+        double[][] publish() {
+            tableShared = true;
+            version++;
+            return pages;
+        }
+
+        private void grow(int minPages) {
+            int length = pages.length;
+            int grown = Math.max(2 * length, minPages);
+            pages = Arrays.copyOf(pages, grown);
+            owner = Arrays.copyOf(owner, grown);
+            tableShared = false;
+            for (int p = length; p < grown; p++) {
+                pages[p] = new double[PAGE];
+                owner[p] = version;
+            }
+        }
+    }
+
+    /**
+     * Naive Bayes model that keeps learning while it serves. Writers adjust the counts of the
+     * messages they are given, and only the log-counts of those messages' words are
+     * recomputed, plus one log denominator and prior per class. Each change then publishes a
+     * {@link Snapshot} through a volatile reference, so readers always score against one
+     * consistent state and never wait for writers. A snapshot shares the vocabulary and all
+     * untouched log-count pages with the previous one, so publishing costs the words changed,
+     * not the whole vocabulary. Counts are doubles so that {@link #decay} can age old evidence.
+     */
+    static final class OnlineModel {
+        private final int classes;
+        private final double[] priorWeights;
+        private final Vocabulary vocabulary;
+        /**
+         * {@code counts[slot * classes + c]}: weight of the word in that slot in class
+         * {@code c}; {@code logCount} holds {@code log(count + 1)} for the same entries.
+         */
+        private double[] counts;
+        private final PagedDoubles logCount = new PagedDoubles();
+        private final double[] wordsOf;
+        private final double[] messagesOf;
+        private double messages;
+        private volatile Snapshot snapshot;
+
+        /**
+         * Starts from already trained counts; {@code priorWeights} as in {@link Counts#freeze}.
+         */
+        OnlineModel(Counts initial, double[] priorWeights) {
+            this.classes = initial.classes;
+            this.priorWeights = priorWeights;
+            this.vocabulary = initial.vocabulary.copy();
+            int uniq = vocabulary.size();
+            this.counts = new double[Math.max(16, uniq) * classes];
+            for (int slot = 0; slot < uniq; slot++) {
+                for (int c = 0; c < classes; c++) {
+                    counts[slot * classes + c] = initial.words[c][slot];
+                    logCount.set(slot * classes + c, Math.log(counts[slot * classes + c] + 1));
+                }
+            }
+            this.wordsOf = new double[classes];
+            this.messagesOf = new double[classes];
+            for (int c = 0; c < classes; c++) {
+                wordsOf[c] = initial.wordsOf[c];
+                messagesOf[c] = initial.messagesOf[c];
+            }
+            this.messages = initial.messages;
+            publish();
+        }
+
+        /**
+         * Current snapshot; keep the returned one to score a batch consistently.
+         */
+        Snapshot snapshot() {
+            return snapshot;
+        }
+
+        /**
+         * Learns one labelled message.
+         */
+        synchronized void update(int[] tokens, int label) {
+            checkLabel(label);
+            for (int token : tokens) {
+                int slot = vocabulary.add(token);
+                if ((slot + 1) * classes > counts.length) {
+                    counts = Arrays.copyOf(counts, 2 * counts.length);
+                }
+                adjust(slot * classes + label, 1);
+            }
+            wordsOf[label] += tokens.length;
+            messagesOf[label]++;
+            messages++;
+            publish();
+        }
+
+        /**
+         * Unlearns a message previously passed to {@link #update} with the same label, e.g.
+         * when the user corrects a label: forget it under the old one, update with the new.
+         * No count goes below zero: evidence that has decayed, or was never learned, is only
+         * removed as far as it is there. Words stay in the vocabulary, and so in the smoothing
+         * denominators, once seen.
+         */
+        synchronized void forget(int[] tokens, int label) {
+            checkLabel(label);
+            double removed = 0;
+            for (int token : tokens) {
+                int slot = vocabulary.slotOf(token);
+                if (slot >= 0) {
+                    int i = slot * classes + label;
+                    double weight = Math.min(counts[i], 1);
+                    adjust(i, -weight);
+                    removed += weight;
+                }
+            }
+            wordsOf[label] = Math.max(0, wordsOf[label] - removed);
+            double message = Math.min(messagesOf[label], 1);
+            messagesOf[label] -= message;
+            messages = Math.max(0, messages - message);
+            publish();
+        }
+
+        /**
+         * Scales all evidence by {@code factor} in (0, 1], so recent messages weigh more than
+         * old ones. Touches every word, unlike {@link #update}.
+         */
+        synchronized void decay(double factor) {
+            if (!(factor > 0 && factor <= 1)) {
+                throw new IllegalArgumentException("decay factor must be in (0, 1]: " + factor);
+            }
+            for (int i = 0; i < vocabulary.size() * classes; i++) {
+                counts[i] *= factor;
+                logCount.set(i, Math.log(counts[i] + 1));
+            }
+            for (int c = 0; c < classes; c++) {
+                wordsOf[c] *= factor;
+                messagesOf[c] *= factor;
+            }
+            messages *= factor;
+            publish();
+        }
+
+        private void checkLabel(int label) {
+            if (label < 0 || label >= classes) {
+                throw new IllegalArgumentException("label " + label + " out of range for " + classes + " classes");
+            }
+        }
+
+        private void adjust(int i, double weight) {
+            counts[i] = Math.max(0, counts[i] + weight);
+            logCount.set(i, Math.log(counts[i] + 1));
+        }
+
+        /**
+         * Publishes the current state in O(classes), plus the page table and pages written
+         * since the last snapshot. Without any messages the priors are uniform, and without
+         * any words so are the word probabilities.
+         */
+        private void publish() {
+            int uniq = vocabulary.size();
+            double[] logDenominator = new double[classes];
+            double[] logPrior = new double[classes];
+            for (int c = 0; c < classes; c++) {
+                logDenominator[c] = Math.log(Math.max(1, wordsOf[c] + uniq));
+                double prior = messages > 0 ? messagesOf[c] / messages : 1.0 / classes;
+                logPrior[c] = Math.log(prior * (priorWeights == null ? 1 : priorWeights[c]));
+            }
+            snapshot = new Snapshot(vocabulary.prefix(), logCount.publish(), logDenominator, logPrior);
+        }
+
+        /**
+         * Immutable state of an {@link OnlineModel}. A word's log-probability under class
+         * {@code c} is its log-count less {@code logDenominator[c]}; a word never seen has
+         * log-count zero.
+         */
+        static final class Snapshot {
+            private final Vocabulary.Prefix vocabulary;
+            private final int classes;
+            private final double[][] logCount;
+            private final double[] logDenominator;
+            private final double[] logPrior;
+
+            private Snapshot(Vocabulary.Prefix vocabulary, double[][] logCount, double[] logDenominator, double[] logPrior) {
+                this.vocabulary = vocabulary;
+                this.classes = logPrior.length;
+                this.logCount = logCount;
+                this.logDenominator = logDenominator;
+                this.logPrior = logPrior;
+            }
+
+            /**
+             * Log-posterior of every class, up to a shared constant.
+             */
+            double[] scores(int[] tokens) {
+                double[] score = logPrior.clone();
+                for (int token : tokens) {
+                    int slot = vocabulary.slotOf(token);
+                    if (slot >= 0) {
+                        int base = slot * classes;
+                        for (int c = 0; c < classes; c++) {
+                            score[c] += PagedDoubles.get(logCount, base + c);
+                        }
                     }
-                    LegalProb = LegalProb + Math.log(pi);
                 }
+                for (int c = 0; c < classes; c++) {
+                    score[c] -= tokens.length * logDenominator[c];
+                }
+                return score;
+            }
 
-                //double prob = (double) 1 / ((double)1 + Math.pow(Math.E, (LegalProb - SpamProb)));
+            /**
+             * Most likely class; ties go to the larger class index.
+             */
+            int classify(int[] tokens) {
+                return argmax(scores(tokens));
+            }
+        }
+    }
+
+    public static class Bayes {
+
+        private int[][] featureMatrix;
+        private int[] LabelVector;
+        private Counts counts;
+        private Model model;
+        private OnlineModel online;
+
+        /**
+         * Messages counted per fork-join task in {@link #train}.
+         */
+        private static final int SHARD_SIZE = 1 << 12;
+
+        private static BufferedReader br;
+        private static StringTokenizer in;
+
+        Bayes() {
+            br = new BufferedReader(new InputStreamReader(System.in));
+        }
+
+        /**
+         * Spam (0) keeps the original zero weight on its prior in the batch model, which rules
+         * it out unless legal messages score no better. The online model uses plain priors, or
+         * marking messages as spam could never change a prediction.
+         */
+        private static final double[] PRIOR_WEIGHTS = {0, 1};
+
+        void train() {
+            counts = Counts.count(2, featureMatrix, LabelVector, SHARD_SIZE);
+            model = counts.freeze(PRIOR_WEIGHTS);
+        }
+
+        /**
+         * Adds counts trained elsewhere and rebuilds the model.
+         */
+        void merge(Counts other) {
+            counts.merge(other);
+            model = counts.freeze(PRIOR_WEIGHTS);
+        }
+
+        Counts counts() {
+            return counts;
+        }
 
-                //SpamProb = SpamProb * 0.95;
+        /**
+         * Model that keeps learning from single messages, starting from the trained counts,
+         * with plain priors.
+         */
+        OnlineModel online() {
+            return new OnlineModel(counts, null);
+        }
+
+        /**
+         * Learns labelled feedback on top of the trained counts, unlearning the messages
+         * marked {@code forget}; {@link #test} then scores with the updated model.
+         */
+        void feedback(int[][] messages, int[] labels, boolean[] forget) {
+            if (online == null) {
+                online = online();
+            }
+            for (int i = 0; i < messages.length; i++) {
+                if (forget[i]) {
+                    online.forget(messages[i], labels[i]);
+                } else {
+                    online.update(messages[i], labels[i]);
+                }
+            }
+        }
 
-                //System.out.println(SpamProb);
-                //System.out.println(LegalProb);
-                //System.out.println(prob);
-                if (LegalProb < SpamProb) {
+        void test(int[][] input) {
+            ToIntFunction<int[]> classifier = online == null ? model::classify : online.snapshot()::classify;
+            for (int[] l : input) {
+                if (classifier.applyAsInt(l) == 0) {
                     System.out.println("S");
                 } else {
                     System.out.println("L");
                 }
-
             }
         }
 
@@ -121,7 +770,6 @@ public class NaiveBayes {
 
             featureMatrix = new int[n][];
             LabelVector = new int[n];
-            numOfAllMessages = n;
 
             for (int i = 0; i < n; i++) {
                 int m = Integer.parseInt(nextToken());
@@ -140,10 +788,37 @@ public class NaiveBayes {
         }
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        Path saveCounts = null;
+        List<Path> merge = new ArrayList<>();
+        List<Path> feedback = new ArrayList<>();
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--save-counts=")) {
+                saveCounts = Paths.get(value);
+            } else if (arg.startsWith("--merge=")) {
+                merge.add(Paths.get(value));
+            } else if (arg.startsWith("--feedback=")) {
+                feedback.add(Paths.get(value));
+            }
+        }
+
         Bayes nb = new Bayes();
         nb.readData();
         nb.train();
+        if (saveCounts != null) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(saveCounts)))) {
+                nb.counts().save(out);
+            }
+        }
+        for (Path path : merge) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                nb.merge(Counts.load(in));
+            }
+        }
+        for (Path path : feedback) {
+            readFeedback(nb, path);
+        }
 
         int n = Integer.parseInt(Bayes.nextToken());
         int[][] featureMatrix = new int[n][];
@@ -158,4 +833,27 @@ public class NaiveBayes {
         nb.test(featureMatrix);
     }
 
+    /**
+     * Feedback files hold messages as in the training data; a label prefixed with '-' takes
+     * the message back out of that class instead, so a corrected label is "-S" followed by
+     * "L" for the same message.
+     */
+    private static void readFeedback(Bayes nb, Path path) throws IOException {
+        StringTokenizer in = new StringTokenizer(new String(Files.readAllBytes(path)));
+        int n = Integer.parseInt(in.nextToken());
+        int[][] messages = new int[n][];
+        int[] labels = new int[n];
+        boolean[] forget = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            messages[i] = new int[Integer.parseInt(in.nextToken())];
+            String label = in.nextToken();
+            forget[i] = label.startsWith("-");
+            labels[i] = label.contains("S") ? 0 : 1;
+            for (int j = 0; j < messages[i].length; j++) {
+                messages[i][j] = Integer.parseInt(in.nextToken());
+            }
+        }
+        nb.feedback(messages, labels, forget);
+    }
+
 }
\ No newline at end of file
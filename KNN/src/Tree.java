@@ -1,18 +1,250 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
 public class Tree {
 
     public static class Item {
-        List<Integer> features;
+        int[] features;
         int cl;
 
-        Item(List<Integer> features, int cl) {
+        Item(int[] features, int cl) {
             this.features = features;
             this.cl = cl;
         }
     }
 
+    /**
+     * Read-only view of a training set shared by every tree trained on it: the features stored
+     * column by column, the labels, every feature's row order sorted by value and, for
+     * histogram training, the binned features.
+     */
+    static final class TrainingSet {
+        /**
+         * Upper bound on the number of bins per feature in histogram mode; bin ids fit a byte.
+         */
+        static final int MAX_BINS = 256;
+
+        /**
+         * {@code columns[f][row]} is feature {@code f} of row {@code row}; {@code labels[row]}
+         * its class, 1-based.
+         */
+        final int[][] columns;
+        final int[] labels;
+        final int M;
+        final int[][] sorted;
+
+        /**
+         * Histogram mode only: {@code bins[f][row]} is the bin of feature {@code f} in row
+         * {@code row}, read as an unsigned byte, and {@code binMax[f][b]} the largest value
+         * that fell into bin {@code b}.
+         */
+        byte[][] bins;
+        int[][] binMax;
+
+        TrainingSet(int[][] columns, int[] labels, boolean histogram) {
+            this.columns = columns;
+            this.labels = labels;
+            this.M = columns.length;
+            this.sorted = new int[M][];
+            IntStream.range(0, M).parallel().forEach(f -> sorted[f] = sortRows(columns[f]));
+            if (histogram) {
+                buildBins();
+            }
+        }
+
+        static TrainingSet of(List<Item> items, int m, boolean histogram) {
+            int[][] columns = new int[m][items.size()];
+            int[] labels = new int[items.size()];
+            for (int row = 0; row < items.size(); row++) {
+                Item item = items.get(row);
+                for (int f = 0; f < m; f++) {
+                    columns[f][row] = item.features[f];
+                }
+                labels[row] = item.cl;
+            }
+            return new TrainingSet(columns, labels, histogram);
+        }
+
+        /**
+         * Rows ordered by value, ties by row index. Each value is packed above its row into
+         * one long, so the keys sort as primitives in (value, row) order.
+         */
+        private static int[] sortRows(int[] column) {
+            long[] keys = new long[column.length];
+            for (int row = 0; row < column.length; row++) {
+                keys[row] = (long) column[row] << 32 | row;
+            }
+            Arrays.sort(keys);
+            int[] rows = new int[column.length];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = (int) keys[i];
+            }
+            return rows;
+        }
+
+        int value(int row, int f) {
+            return columns[f][row];
+        }
+
+        int cl(int row) {
+            return labels[row];
+        }
+
+        int size() {
+            return labels.length;
+        }
+
+        int[] row(int row) {
+            int[] features = new int[M];
+            for (int f = 0; f < M; f++) {
+                features[f] = columns[f][row];
+            }
+            return features;
+        }
+
+        /**
+         * Splits every feature into at most {@link #MAX_BINS} bins of consecutive values, using
+         * the presorted rows. Each distinct value gets its own bin when there are few enough of
+         * them; otherwise bins hold roughly equal numbers of rows and never split a value.
+         */
+        private void buildBins() {
+            int n = size();
+            bins = new byte[M][n];
+            binMax = new int[M][];
+            for (int f = 0; f < M; f++) {
+                int[] rows = sorted[f];
+                int distinct = 0;
+                for (int i = 0; i < n; i++) {
+                    if (i == 0 || value(rows[i], f) != value(rows[i - 1], f)) {
+                        distinct++;
+                    }
+                }
+                int[] max = new int[Math.min(distinct, MAX_BINS)];
+                int b = -1;
+                for (int i = 0; i < n; i++) {
+                    int v = value(rows[i], f);
+                    boolean newValue = i == 0 || v != value(rows[i - 1], f);
+                    if (newValue && (b < 0 || distinct <= MAX_BINS || (long) i * MAX_BINS >= (long) (b + 1) * n)) {
+                        b++;
+                    }
+                    bins[f][rows[i]] = (byte) b;
+                    max[b] = v;
+                }
+                binMax[f] = Arrays.copyOf(max, b + 1);
+            }
+        }
+
+        int bin(int f, int row) {
+            return bins[f][row] & 0xFF;
+        }
+    }
+
+    /**
+     * Rows of the nodes of one tree under training: every node owns a range {@code [from, to)}
+     * of one or more row arrays and splits it stably in place, so children get contiguous
+     * ranges without copying. Shared by {@link DecisionTree} and {@link GradientBoosting}.
+     */
+    static final class RowPartition {
+        /**
+         * Side of the current split for every row, set by the node before it partitions.
+         */
+        final boolean[] goesLeft;
+        /**
+         * Partition scratch; a node uses the same range of it as of its rows.
+         */
+        private final int[] buffer;
+
+        RowPartition(int rows, int capacity) {
+            goesLeft = new boolean[rows];
+            buffer = new int[capacity];
+        }
+
+        /**
+         * Stable in-place partition of {@code rows[from, to)}: rows marked in {@link #goesLeft}
+         * first. Returns where the right part starts.
+         */
+        int partition(int[] rows, int from, int to) {
+            int l = from;
+            int r = from;
+            for (int i = from; i < to; i++) {
+                int row = rows[i];
+                if (goesLeft[row]) {
+                    rows[l++] = row;
+                } else {
+                    buffer[r++] = row;
+                }
+            }
+            System.arraycopy(buffer, from, rows, l, r - from);
+            return l;
+        }
+    }
+
+    /**
+     * Per-feature histograms over the bins of a {@link TrainingSet}: {@code hist[f]} holds
+     * {@link Statistic#width} sums per bin, {@code hist[f][b * width + s]}. What a row adds is
+     * up to the trainer: class counts for {@link DecisionTree}, gradient and hessian for
+     * {@link GradientBoosting}.
+     */
+    static final class BinHistograms {
+        interface Statistic {
+            int width();
+
+            /**
+             * Adds the row's statistics to {@code hist[offset, offset + width)}.
+             */
+            void add(double[] hist, int offset, int row);
+        }
+
+        private BinHistograms() {
+        }
+
+        static double[][] build(TrainingSet set, int[] rows, int from, int to, Statistic statistic) {
+            int width = statistic.width();
+            double[][] hist = new double[set.M][];
+            IntStream features = IntStream.range(0, set.M);
+            if (to - from >= DecisionTree.PARALLEL_CUTOFF) {
+                features = features.parallel();
+            }
+            features.forEach(f -> {
+                double[] hf = new double[set.binMax[f].length * width];
+                for (int i = from; i < to; i++) {
+                    int row = rows[i];
+                    statistic.add(hf, set.bin(f, row) * width, row);
+                }
+                hist[f] = hf;
+            });
+            return hist;
+        }
+
+        /**
+         * Histograms of the children {@code rows[from, mid)} and {@code rows[mid, to)}, as
+         * {left, right}. Only the smaller child's is built from its rows; the larger one is the
+         * parent's minus the smaller, computed in place in {@code parent}.
+         */
+        static double[][][] children(TrainingSet set, int[] rows, int from, int mid, int to,
+                                     double[][] parent, Statistic statistic) {
+            boolean leftSmaller = mid - from <= to - mid;
+            double[][] small = leftSmaller ? build(set, rows, from, mid, statistic) : build(set, rows, mid, to, statistic);
+            for (int f = 0; f < parent.length; f++) {
+                for (int i = 0; i < parent[f].length; i++) {
+                    parent[f][i] -= small[f][i];
+                }
+            }
+            return leftSmaller ? new double[][][]{small, parent} : new double[][][]{parent, small};
+        }
+    }
+
     public static class DecisionTree {
         private class Node {
             boolean isLeaf;
@@ -22,6 +254,14 @@ public class Tree {
 
             Node left, right;
 
+            /**
+             * Training rows that reached the node, its majority class (0-based) and how many
+             * of its rows that class gets wrong; used by pruning.
+             */
+            int size;
+            int cl;
+            int errors;
+
             Node(int ruleInd, double ruleValue, Node left, Node right) {
                 this.ruleInd = ruleInd;
                 this.ruleValue = ruleValue;
@@ -36,21 +276,128 @@ public class Tree {
             }
         }
 
+        /**
+         * Nodes with at least this many rows scan their features in parallel and train their
+         * subtrees as separate fork-join tasks; smaller nodes are cheaper to do sequentially.
+         */
+        static final int PARALLEL_CUTOFF = 1 << 14;
+
+        /**
+         * Stopping criteria and pruning for {@link DecisionTree#train}.
+         */
+        static final class Params {
+            /**
+             * Maximum number of levels, the root included.
+             */
+            int maxDepth = 11;
+            /**
+             * Splits leaving fewer rows than this on either side are not considered.
+             */
+            int minSamplesLeaf = 1;
+            /**
+             * A node is split only if the best split decreases Gini impurity, weighted by the
+             * share of training rows in the node, by at least this much.
+             */
+            double minImpurityDecrease = 0;
+            /**
+             * Cost-complexity pruning strength: after training, subtrees whose misclassification
+             * rate gain per extra leaf is at most this are collapsed. Zero keeps the tree as is.
+             */
+            double ccpAlpha = 0;
+            /**
+             * The weakest subtrees keep being collapsed until at most this many leaves are left.
+             */
+            int maxLeaves = Integer.MAX_VALUE;
+            /**
+             * Find splits on per-bin class histograms instead of scanning every sample boundary;
+             * identical to the exact trainer when no feature has more than {@link TrainingSet#MAX_BINS}
+             * distinct values.
+             */
+            boolean histogram = false;
+            /**
+             * Features drawn at random, without replacement, as split candidates at every node;
+             * zero or at least M means all of them.
+             */
+            int maxFeatures = 0;
+
+            /**
+             * Rejects settings no tree can be trained with.
+             */
+            Params validate() {
+                if (maxDepth < 1) {
+                    throw new IllegalArgumentException("maxDepth must be at least 1: " + maxDepth);
+                }
+                if (minSamplesLeaf < 1) {
+                    throw new IllegalArgumentException("minSamplesLeaf must be at least 1: " + minSamplesLeaf);
+                }
+                if (maxLeaves < 1) {
+                    throw new IllegalArgumentException("maxLeaves must be at least 1: " + maxLeaves);
+                }
+                if (!(minImpurityDecrease >= 0)) {
+                    throw new IllegalArgumentException("minImpurityDecrease must be non-negative: " + minImpurityDecrease);
+                }
+                if (!(ccpAlpha >= 0)) {
+                    throw new IllegalArgumentException("ccpAlpha must be non-negative: " + ccpAlpha);
+                }
+                if (maxFeatures < 0) {
+                    throw new IllegalArgumentException("maxFeatures must be non-negative: " + maxFeatures);
+                }
+                return this;
+            }
+
+            Params copy() {
+                Params copy = new Params();
+                copy.maxDepth = maxDepth;
+                copy.minSamplesLeaf = minSamplesLeaf;
+                copy.minImpurityDecrease = minImpurityDecrease;
+                copy.ccpAlpha = ccpAlpha;
+                copy.maxLeaves = maxLeaves;
+                copy.histogram = histogram;
+                copy.maxFeatures = maxFeatures;
+                return copy;
+            }
+        }
+
         private Node root;
         private int N, M, K;
+        private final Params params;
+        private TrainingSet data;
+        /**
+         * Number of training rows, counting repeated rows of a bootstrap sample.
+         */
+        private int total;
+
+        /**
+         * Training state shared by all nodes: every node owns a range {@code [from, to)} of
+         * {@code sorted[j]} (exact mode) or {@code rows} (histogram mode).
+         */
+        private int[][] sorted;
+        private int[] rows;
+        private RowPartition partition;
+        /**
+         * Histogram mode: every row counts once towards its class.
+         */
+        private final BinHistograms.Statistic classCounts = new BinHistograms.Statistic() {
+            @Override
+            public int width() {
+                return K;
+            }
+
+            @Override
+            public void add(double[] hist, int offset, int row) {
+                hist[offset + data.cl(row) - 1]++;
+            }
+        };
 
         DecisionTree(int n, int m, int k) {
+            this(n, m, k, new Params());
+        }
+
+        DecisionTree(int n, int m, int k, Params params) {
             M = m;
             N = n;
             K = k;
-        }
-
-        private int[] countClasses(List<Item> data) {
-            int[] list = new int[K];
-            for (Item item : data) {
-                list[item.cl - 1]++;
-            }
-            return list;
+            this.params = params.validate();
         }
 
         private double qualitySet(int[] counts) {
@@ -74,52 +421,51 @@ public class Tree {
             return ret;
         }
 
+        private int value(int row, int f) {
+            return data.value(row, f);
+        }
 
-        static final Random RND = new Random();
-        private void swap(List<Item> array, int i, int j) {
-            Item tmp = array.get(i);
-            array.set(i, array.get(j));
-            array.set(j, tmp);
+        private int bin(int f, int row) {
+            return data.bin(f, row);
         }
 
-        private int partition(List<Item> array, int begin, int end, int f) {
-            int index = begin + RND.nextInt(end - begin + 1);
-            Item pivot = array.get(index);
-            swap(array, index, end);
-            for (int i = index = begin; i < end; ++ i) {
-                if (array.get(i).features.get(f) <= pivot.features.get(f)) {
-                    swap(array, index++, i);
-                }
+        private int[] countClasses(int[] rows, int from, int to) {
+            int[] list = new int[K];
+            for (int i = from; i < to; i++) {
+                list[data.cl(rows[i]) - 1]++;
             }
-            swap(array, index, end);
-            return (index);
+            return list;
         }
 
-        private void qsort(List<Item> array, int begin, int end, int f) {
-            if (end > begin) {
-                int index = partition(array, begin, end, f);
-                qsort(array, begin, index - 1, f);
-                qsort(array, index + 1,  end, f);
+        private Node withStats(Node node, int[] counts) {
+            int best = 0;
+            int mxBest = counts[0];
+            int size = counts[0];
+            for (int i = 1; i < K; i++) {
+                size += counts[i];
+                if (counts[i] > mxBest) {
+                    mxBest = counts[i];
+                    best = i;
+                }
             }
+            node.size = size;
+            node.cl = best;
+            node.errors = size - mxBest;
+            return node;
         }
 
-        private void mySort(List<Item> data, int f) {
-            qsort(data, 0, data.size() - 1, f);
+        private Node majority(int[] counts) {
+            Node leaf = withStats(new Node(0), counts);
+            leaf.ruleInd = leaf.cl;
+            return leaf;
         }
 
-
-        private Node trainImpl(List<Item> data, int h) {
-            int counts[] = countClasses(data);
-            if (h == 11) {
-                int best = 0;
-                int mxBest = counts[0];
-                for (int i = 1; i < K; i++) {
-                    if (counts[i] > mxBest) {
-                        mxBest = counts[i];
-                        best = i;
-                    }
-                }
-                return new Node(best);
+        /**
+         * Leaf to stop at, or null if the node should be split.
+         */
+        private Node stopLeaf(int[] counts, int h, int n) {
+            if (h >= params.maxDepth || n < 2 * params.minSamplesLeaf) {
+                return majority(counts);
             }
             int cnt = 0;
             for (int i : counts) {
@@ -128,46 +474,218 @@ public class Tree {
                 }
             }
             if (cnt == 1) {
-                for (int i = 0; i < K; i++) {
-                    if (counts[i] != 0) {
-                        return new Node(i);
-                    }
+                return majority(counts);
+            }
+            return null;
+        }
+
+        /**
+         * Whether the best split found is worth making under {@link Params#minImpurityDecrease}.
+         */
+        private boolean worthSplitting(Split best, int n) {
+            return best != null && (double) n / total * best.quality >= params.minImpurityDecrease;
+        }
+
+        /**
+         * Best split found on one feature; {@code value} is the rule value in exact mode and
+         * the last bin of the left side in histogram mode.
+         */
+        private static final class Split {
+            final double quality;
+            final int feature;
+            final int value;
+
+            Split(double quality, int feature, int value) {
+                this.quality = quality;
+                this.feature = feature;
+                this.value = value;
+            }
+        }
+
+        /**
+         * Split candidates for one node, in increasing order: every feature, or a random
+         * subset of {@link Params#maxFeatures} of them drawn from the node's own stream.
+         */
+        private int[] nodeFeatures(SplittableRandom random) {
+            int[] features = IntStream.range(0, M).toArray();
+            if (params.maxFeatures <= 0 || params.maxFeatures >= M) {
+                return features;
+            }
+            for (int i = 0; i < params.maxFeatures; i++) {
+                int j = i + random.nextInt(M - i);
+                int tmp = features[i];
+                features[i] = features[j];
+                features[j] = tmp;
+            }
+            int[] subset = Arrays.copyOf(features, params.maxFeatures);
+            Arrays.sort(subset);
+            return subset;
+        }
+
+        /**
+         * Best of the per-feature splits. Ties go to the smaller feature index, which is what a
+         * sequential scan keeping the first strictly better split would pick.
+         */
+        private Split bestSplit(int n, SplittableRandom random, IntFunction<Split> splitOnFeature) {
+            IntStream features = Arrays.stream(nodeFeatures(random));
+            if (n >= PARALLEL_CUTOFF) {
+                features = features.parallel();
+            }
+            Split best = null;
+            for (Split split : features.mapToObj(splitOnFeature).toArray(Split[]::new)) {
+                if (split != null && (best == null || split.quality > best.quality)) {
+                    best = split;
                 }
             }
+            return best;
+        }
 
-            Double bestQlt = null;
-            int bestRuleInd = -1;
-            int bestRuleValue = -1;
-            List<Item> bestLeft = new ArrayList<>();
-            List<Item> bestRight = new ArrayList<>();
+        /**
+         * Trains both children, forking the left one when the node is large enough that the
+         * subtrees are worth running as separate fork-join tasks.
+         */
+        private Node split(int ruleInd, int ruleValue, int n, int[] counts, Supplier<Node> left, Supplier<Node> right) {
+            Node leftNode;
+            Node rightNode;
+            if (n >= PARALLEL_CUTOFF) {
+                ForkJoinTask<Node> leftTask = ForkJoinTask.adapt(left::get).fork();
+                rightNode = right.get();
+                leftNode = leftTask.join();
+            } else {
+                leftNode = left.get();
+                rightNode = right.get();
+            }
+            return withStats(new Node(ruleInd, ruleValue, leftNode, rightNode), counts);
+        }
+
+        /**
+         * Rows of every feature are sorted once, in {@link #train}; {@code sorted[j][from, to)}
+         * holds the rows of the current node ordered by feature {@code j}. The scan only
+         * remembers the best (feature, value); the rows are then partitioned once, stably and
+         * in place, so children get sorted ranges without any node sorting or copying again.
+         */
+        private Node trainImpl(int from, int to, int h, SplittableRandom random) {
+            int n = to - from;
+            int counts[] = countClasses(sorted[0], from, to);
+            Node leaf = stopLeaf(counts, h, n);
+            if (leaf != null) {
+                return leaf;
+            }
 
+            Split best = bestSplit(n, random, j -> splitOnFeature(j, from, to, counts));
+            if (!worthSplitting(best, n)) {
+                return majority(counts);
+            }
+
+            for (int i = from; i < to; i++) {
+                int row = sorted[best.feature][i];
+                partition.goesLeft[row] = value(row, best.feature) <= best.value;
+            }
+            int mid = from;
             for (int j = 0; j < M; j++) {
-                mySort(data, j);
+                mid = partition.partition(sorted[j], from, to);
+            }
 
-                int countsLeft[] = new int[K];
-                int countsRight[] = counts.clone();
-                Item cur = data.get(0);
-                countsLeft[cur.cl - 1]++;
-                countsRight[cur.cl - 1]--;
+            int m = mid;
+            SplittableRandom leftRandom = random.split();
+            return split(best.feature, best.value, n, counts,
+                    () -> trainImpl(from, m, h + 1, leftRandom), () -> trainImpl(m, to, h + 1, random));
+        }
 
-                for (int i = 1; i < data.size(); i++) {
-                    double qlt = quality(data.size(), i, data.size() - i, counts, countsLeft, countsRight);
+        private Split splitOnFeature(int j, int from, int to, int[] counts) {
+            int n = to - from;
+            int[] rows = sorted[j];
+            Double bestQlt = null;
+            int bestRuleValue = -1;
+            int countsLeft[] = new int[K];
+            int countsRight[] = counts.clone();
+            int cur = data.cl(rows[from]);
+            countsLeft[cur - 1]++;
+            countsRight[cur - 1]--;
+
+            for (int i = 1; i < n; i++) {
+                int prevValue = value(rows[from + i - 1], j);
+                if (prevValue != value(rows[from + i], j)
+                        && i >= params.minSamplesLeaf && n - i >= params.minSamplesLeaf) {
+                    double qlt = quality(n, i, n - i, counts, countsLeft, countsRight);
 
                     if (bestQlt == null || qlt > bestQlt) {
                         bestQlt = qlt;
-                        bestLeft = new ArrayList<>(data.subList(0, i));
-                        bestRight = new ArrayList<>(data.subList(i, data.size()));
-                        bestRuleInd = j;
-                        bestRuleValue = data.get(i - 1).features.get(j);
+                        bestRuleValue = prevValue;
                     }
-
-                    cur = data.get(i);
-                    countsLeft[cur.cl - 1]++;
-                    countsRight[cur.cl - 1]--;
                 }
+
+                cur = data.cl(rows[from + i]);
+                countsLeft[cur - 1]++;
+                countsRight[cur - 1]--;
+            }
+            return bestQlt == null ? null : new Split(bestQlt, j, bestRuleValue);
+        }
+
+        /**
+         * Histogram counterpart of {@link #trainImpl}: candidate splits are bin boundaries and
+         * class counts by bin, {@code hist[f][b * K + c]}, come from {@code hist}; the node's
+         * rows are {@code rows[from, to)}.
+         */
+        private Node trainHistogram(int from, int to, double[][] hist, int h, SplittableRandom random) {
+            int n = to - from;
+            int counts[] = countClasses(rows, from, to);
+            Node leaf = stopLeaf(counts, h, n);
+            if (leaf != null) {
+                return leaf;
+            }
+
+            Split best = bestSplit(n, random, j -> splitOnBins(j, hist[j], n, counts));
+            if (!worthSplitting(best, n)) {
+                return majority(counts);
             }
 
-            return new Node(bestRuleInd, bestRuleValue, trainImpl(bestLeft, h + 1), trainImpl(bestRight, h + 1));
+            for (int i = from; i < to; i++) {
+                int row = rows[i];
+                partition.goesLeft[row] = bin(best.feature, row) <= best.value;
+            }
+            int mid = partition.partition(rows, from, to);
+            double[][][] children = BinHistograms.children(data, rows, from, mid, to, hist, classCounts);
+            double[][] leftHist = children[0];
+            double[][] rightHist = children[1];
+
+            SplittableRandom leftRandom = random.split();
+            return split(best.feature, data.binMax[best.feature][best.value], n, counts,
+                    () -> trainHistogram(from, mid, leftHist, h + 1, leftRandom),
+                    () -> trainHistogram(mid, to, rightHist, h + 1, random));
+        }
+
+        private Split splitOnBins(int j, double[] hj, int n, int[] counts) {
+            Double bestQlt = null;
+            int bestBin = -1;
+            int countsLeft[] = new int[K];
+            int countsRight[] = counts.clone();
+            int left = 0;
+            for (int b = 0; b + 1 < data.binMax[j].length; b++) {
+                int inBin = 0;
+                for (int c = 0; c < K; c++) {
+                    int v = (int) hj[b * K + c];
+                    countsLeft[c] += v;
+                    countsRight[c] -= v;
+                    inBin += v;
+                }
+                if (inBin == 0) {
+                    continue;
+                }
+                left += inBin;
+                if (n - left < params.minSamplesLeaf) {
+                    break;
+                }
+                if (left < params.minSamplesLeaf) {
+                    continue;
+                }
+                double qlt = quality(n, left, n - left, counts, countsLeft, countsRight);
+                if (bestQlt == null || qlt > bestQlt) {
+                    bestQlt = qlt;
+                    bestBin = b;
+                }
+            }
+            return bestQlt == null ? null : new Split(bestQlt, j, bestBin);
         }
 
         int H(Node node, int n) {
@@ -177,10 +695,159 @@ public class Tree {
             return Math.max(H(node.left, n + 1), H(node.right, n + 1));
         }
 
-        void train(List<Item> data) throws Exception {
-            root = trainImpl(data, 1);
-            if (H(root, 0) > 11)
-                throw new Exception();
+        void train(List<Item> data) {
+            train(TrainingSet.of(data, M, params.histogram));
+        }
+
+        void train(TrainingSet set) {
+            train(set, null, new SplittableRandom());
+        }
+
+        /**
+         * Trains on a shared training set. Row {@code r} is used {@code multiplicity[r]} times,
+         * which is how bootstrap samples are expressed; null means every row once. The presorted
+         * orders of {@code set} are expanded to the sample, so no sorting happens here.
+         * Feature subsets are drawn from {@code random}, split off for every child node, so
+         * the tree depends on the stream's seed and not on how subtrees are scheduled.
+         */
+        void train(TrainingSet set, int[] multiplicity, SplittableRandom random) {
+            this.data = set;
+            int n = set.size();
+            total = 0;
+            for (int r = 0; r < n; r++) {
+                total += multiplicity == null ? 1 : multiplicity[r];
+            }
+            partition = new RowPartition(n, total);
+            if (params.histogram) {
+                rows = expand(IntStream.range(0, n).toArray(), multiplicity);
+                root = ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(() ->
+                        trainHistogram(0, rows.length, BinHistograms.build(data, rows, 0, rows.length, classCounts), 1, random)));
+            } else {
+                sorted = new int[M][];
+                for (int j = 0; j < M; j++) {
+                    sorted[j] = expand(set.sorted[j], multiplicity);
+                }
+                root = ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(() -> trainImpl(0, total, 1, random)));
+            }
+            sorted = null;
+            rows = null;
+            partition = null;
+            prune();
+            if (H(root, 0) > params.maxDepth) {
+                throw new IllegalStateException("tree is deeper than " + params.maxDepth + " levels");
+            }
+        }
+
+        private int[] expand(int[] order, int[] multiplicity) {
+            if (multiplicity == null) {
+                return order.clone();
+            }
+            int[] expanded = new int[total];
+            int i = 0;
+            for (int row : order) {
+                for (int c = 0; c < multiplicity[row]; c++) {
+                    expanded[i++] = row;
+                }
+            }
+            return expanded;
+        }
+
+        /**
+         * Class (1-based) the tree assigns to a row with the given features.
+         */
+        int predict(int[] features) {
+            Node v = root;
+            while (!v.isLeaf) {
+                v = features[v.ruleInd] <= v.ruleValue ? v.left : v.right;
+            }
+            return v.ruleInd + 1;
+        }
+
+        /**
+         * Compiles the trained tree into its array form.
+         */
+        FlatTree flatten() {
+            int size = treeSize(root);
+            int[] feature = new int[size];
+            double[] threshold = new double[size];
+            int[] left = new int[size];
+            int[] right = new int[size];
+            int[] cl = new int[size];
+            Node[] queue = new Node[size];
+            queue[0] = root;
+            int tail = 1;
+            for (int i = 0; i < size; i++) {
+                Node v = queue[i];
+                if (v.isLeaf) {
+                    threshold[i] = Double.POSITIVE_INFINITY;
+                    left[i] = i;
+                    right[i] = i;
+                    cl[i] = v.ruleInd + 1;
+                } else {
+                    feature[i] = v.ruleInd;
+                    threshold[i] = v.ruleValue;
+                    left[i] = tail;
+                    queue[tail++] = v.left;
+                    right[i] = tail;
+                    queue[tail++] = v.right;
+                }
+            }
+            return new FlatTree(feature, threshold, left, right, cl, H(root, 0) - 1);
+        }
+
+        private int leaves(Node v) {
+            if (v.isLeaf)
+                return 1;
+            return leaves(v.left) + leaves(v.right);
+        }
+
+        /**
+         * Post-order walk looking for the internal node with the smallest cost-complexity link
+         * strength {@code (R(t) - R(T_t)) / (|leaves(T_t)| - 1)}, where R is the
+         * misclassification rate over the training set. Returns the number of leaves and of
+         * training errors of the subtree at {@code v}.
+         */
+        private long[] weakestLink(Node v, WeakestLink weakest) {
+            if (v.isLeaf) {
+                return new long[]{1, v.errors};
+            }
+            long[] l = weakestLink(v.left, weakest);
+            long[] r = weakestLink(v.right, weakest);
+            long leaves = l[0] + r[0];
+            long errors = l[1] + r[1];
+            double g = (double) (v.errors - errors) / total / (leaves - 1);
+            if (weakest.node == null || g <= weakest.strength) {
+                weakest.node = v;
+                weakest.strength = g;
+            }
+            return new long[]{leaves, errors};
+        }
+
+        private static final class WeakestLink {
+            Node node;
+            double strength;
+        }
+
+        /**
+         * Weakest-link cost-complexity pruning: collapses subtrees while their link strength is
+         * at most a positive {@link Params#ccpAlpha} or the tree has more than
+         * {@link Params#maxLeaves} leaves.
+         */
+        private void prune() {
+            while (!root.isLeaf) {
+                WeakestLink weakest = new WeakestLink();
+                weakestLink(root, weakest);
+                boolean weak = params.ccpAlpha > 0 && weakest.strength <= params.ccpAlpha;
+                if (!weak && leaves(root) <= params.maxLeaves) {
+                    return;
+                }
+                Node v = weakest.node;
+                v.isLeaf = true;
+                v.ruleInd = v.cl;
+                v.ruleValue = -1;
+                v.left = null;
+                v.right = null;
+            }
         }
 
         void print() {
@@ -230,6 +897,745 @@ public class Tree {
         }
     }
 
+    /**
+     * A trained tree compiled into parallel arrays, nodes numbered breadth-first from the
+     * root so the top levels that every row visits share a few cache lines. Node {@code i}
+     * sends a row to {@code left[i]} when its {@code feature[i]} is at most
+     * {@code threshold[i]}, else to {@code right[i]}. Leaves point back at themselves with an
+     * infinite threshold, so every row is routed exactly {@link #depth} times without checking
+     * for leaves; {@code cl[i]} is the leaf's class, 1-based.
+     */
+    public static final class FlatTree {
+        final int[] feature;
+        final double[] threshold;
+        final int[] left;
+        final int[] right;
+        final int[] cl;
+        /**
+         * Edges on the longest root-to-leaf path.
+         */
+        final int depth;
+
+        FlatTree(int[] feature, double[] threshold, int[] left, int[] right, int[] cl, int depth) {
+            this.feature = feature;
+            this.threshold = threshold;
+            this.left = left;
+            this.right = right;
+            this.cl = cl;
+            this.depth = depth;
+        }
+
+        int size() {
+            return feature.length;
+        }
+
+        int predict(int[] row) {
+            int v = 0;
+            for (int level = 0; level < depth; level++) {
+                v = row[feature[v]] <= threshold[v] ? left[v] : right[v];
+            }
+            return cl[v];
+        }
+
+        /**
+         * Classes of many rows at once. All rows advance one level per pass, so each pass
+         * reads only the handful of nodes on that level instead of chasing one row's path
+         * through the whole tree at a time.
+         */
+        int[] predictBatch(int[][] rows) {
+            int[] at = new int[rows.length];
+            for (int level = 0; level < depth; level++) {
+                for (int i = 0; i < rows.length; i++) {
+                    int v = at[i];
+                    at[i] = rows[i][feature[v]] <= threshold[v] ? left[v] : right[v];
+                }
+            }
+            for (int i = 0; i < rows.length; i++) {
+                at[i] = cl[at[i]];
+            }
+            return at;
+        }
+    }
+
+    /**
+     * Binary model file holding one or more {@link FlatTree}s, scored in place from a
+     * memory-mapped buffer so that loading a large forest costs one validating pass over the
+     * nodes instead of parsing them into objects. Layout, big-endian:
+     * <pre>
+     * int magic, int version, int M, int K, int trees
+     * per tree: int depth, int size, then size nodes of
+     *           int feature, double threshold, int left, int right, int class
+     * </pre>
+     * Node links are indices within their own tree.
+     */
+    public static final class MappedForest {
+        static final int MAGIC = 0x43415254;
+        static final int VERSION = 1;
+        private static final int HEADER_BYTES = 5 * Integer.BYTES;
+        private static final int NODE_BYTES = 4 * Integer.BYTES + Double.BYTES;
+
+        private final ByteBuffer buffer;
+        private final int M;
+        private final int K;
+        /**
+         * Byte offset of every tree's first node, and the tree's depth.
+         */
+        private final int[] nodes;
+        private final int[] depth;
+
+        private MappedForest(ByteBuffer buffer) throws IOException {
+            this.buffer = buffer;
+            if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+                throw new IOException("not a tree model file");
+            }
+            int version = buffer.getInt(4);
+            if (version != VERSION) {
+                throw new IOException("unsupported tree model version " + version);
+            }
+            M = buffer.getInt(8);
+            K = buffer.getInt(12);
+            int trees = buffer.getInt(16);
+            if (M < 0 || K < 1 || trees < 0 || trees > (buffer.limit() - HEADER_BYTES) / (2 * Integer.BYTES)) {
+                throw new IOException("corrupt tree model header");
+            }
+            nodes = new int[trees];
+            depth = new int[trees];
+            int at = HEADER_BYTES;
+            for (int t = 0; t < trees; t++) {
+                if (at + 2 * Integer.BYTES > buffer.limit()) {
+                    throw new IOException("truncated tree model file");
+                }
+                depth[t] = buffer.getInt(at);
+                int size = buffer.getInt(at + Integer.BYTES);
+                nodes[t] = at + 2 * Integer.BYTES;
+                if (size < 1 || depth[t] < 0 || (long) size * NODE_BYTES > buffer.limit() - nodes[t]) {
+                    throw new IOException("truncated or corrupt tree " + t + " in tree model file");
+                }
+                checkTree(t, size);
+                at = nodes[t] + size * NODE_BYTES;
+            }
+        }
+
+        /**
+         * Checks that every node of tree {@code t} reads a feature in [0, M) and is either a
+         * leaf looping back to itself with a class in [1, K] or splits into two later nodes, and
+         * that no leaf lies deeper than the tree's depth, so {@link #predict} always stops at
+         * a leaf inside the tree.
+         */
+        private void checkTree(int t, int size) throws IOException {
+            int[] level = new int[size];
+            for (int v = 0; v < size; v++) {
+                int node = nodes[t] + v * NODE_BYTES;
+                int feature = buffer.getInt(node);
+                int left = buffer.getInt(node + Integer.BYTES + Double.BYTES);
+                int right = buffer.getInt(node + 2 * Integer.BYTES + Double.BYTES);
+                int cl = buffer.getInt(node + 3 * Integer.BYTES + Double.BYTES);
+                boolean leaf = left == v && right == v;
+                if (feature < 0 || feature >= M || (leaf ? cl < 1 || cl > K
+                        : left <= v || right <= v || left >= size || right >= size)) {
+                    throw new IOException("corrupt node " + v + " of tree " + t + " in tree model file");
+                }
+                if (level[v] > depth[t]) {
+                    throw new IOException("tree " + t + " is deeper than its recorded depth " + depth[t]);
+                }
+                if (!leaf) {
+                    level[left] = Math.max(level[left], level[v] + 1);
+                    level[right] = Math.max(level[right], level[v] + 1);
+                }
+            }
+        }
+
+        static void save(Path path, int m, int k, List<FlatTree> trees) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(m);
+                out.writeInt(k);
+                out.writeInt(trees.size());
+                for (FlatTree tree : trees) {
+                    out.writeInt(tree.depth);
+                    out.writeInt(tree.size());
+                    for (int i = 0; i < tree.size(); i++) {
+                        out.writeInt(tree.feature[i]);
+                        out.writeDouble(tree.threshold[i]);
+                        out.writeInt(tree.left[i]);
+                        out.writeInt(tree.right[i]);
+                        out.writeInt(tree.cl[i]);
+                    }
+                }
+            }
+        }
+
+        static MappedForest load(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return new MappedForest(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+
+        int features() {
+            return M;
+        }
+
+        /**
+         * Class (1-based) most trees vote for; ties go to the smaller class.
+         */
+        int predict(int[] row) {
+            int[] votes = new int[K];
+            for (int t = 0; t < nodes.length; t++) {
+                int base = nodes[t];
+                int v = 0;
+                for (int level = 0; level < depth[t]; level++) {
+                    int node = base + v * NODE_BYTES;
+                    boolean goLeft = row[buffer.getInt(node)] <= buffer.getDouble(node + Integer.BYTES);
+                    v = buffer.getInt(node + Integer.BYTES + Double.BYTES + (goLeft ? 0 : Integer.BYTES));
+                }
+                votes[buffer.getInt(base + v * NODE_BYTES + NODE_BYTES - Integer.BYTES) - 1]++;
+            }
+            int best = 0;
+            for (int c = 1; c < K; c++) {
+                if (votes[c] > votes[best]) {
+                    best = c;
+                }
+            }
+            return best + 1;
+        }
+    }
+
+    /**
+     * Bagged decision trees: every tree is trained on its own bootstrap sample of the shared
+     * {@link TrainingSet}, choosing among a random subset of features at every node, and the
+     * forest predicts by majority vote. Rows a tree did not sample give the out-of-bag error.
+     */
+    public static class RandomForest {
+        private final int M;
+        private final int K;
+        private final DecisionTree.Params params;
+        private final int treeCount;
+        private final long seed;
+        private DecisionTree[] trees;
+        /**
+         * The trees compiled once after training, for batch scoring and saving.
+         */
+        private FlatTree[] flat;
+        private double oobError = Double.NaN;
+
+        /**
+         * {@code params.maxFeatures} of zero is taken as the usual {@code sqrt(M)}.
+         */
+        RandomForest(int m, int k, int treeCount, DecisionTree.Params params, long seed) {
+            this.M = m;
+            this.K = k;
+            this.treeCount = treeCount;
+            this.seed = seed;
+            this.params = params.copy();
+            if (this.params.maxFeatures <= 0) {
+                this.params.maxFeatures = Math.max(1, (int) Math.round(Math.sqrt(m)));
+            }
+        }
+
+        void train(List<Item> data) {
+            train(TrainingSet.of(data, M, params.histogram));
+        }
+
+        void train(TrainingSet set) {
+            int n = set.size();
+            int[][] multiplicity = new int[treeCount][];
+            trees = new DecisionTree[treeCount];
+            SplittableRandom forestRandom = new SplittableRandom(seed);
+            SplittableRandom[] treeRandom = new SplittableRandom[treeCount];
+            for (int t = 0; t < treeCount; t++) {
+                treeRandom[t] = forestRandom.split();
+            }
+            ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(() -> IntStream.range(0, treeCount).parallel().forEach(t -> {
+                SplittableRandom random = treeRandom[t];
+                int[] sample = new int[n];
+                for (int i = 0; i < n; i++) {
+                    sample[random.nextInt(n)]++;
+                }
+                DecisionTree tree = new DecisionTree(n, M, K, params);
+                tree.train(set, sample, random);
+                multiplicity[t] = sample;
+                trees[t] = tree;
+            })));
+            flat = Arrays.stream(trees).map(DecisionTree::flatten).toArray(FlatTree[]::new);
+
+            int[] votes = new int[K];
+            int errors = 0;
+            int voted = 0;
+            for (int row = 0; row < n; row++) {
+                Arrays.fill(votes, 0);
+                boolean any = false;
+                int[] features = set.row(row);
+                for (int t = 0; t < treeCount; t++) {
+                    if (multiplicity[t][row] == 0) {
+                        votes[trees[t].predict(features) - 1]++;
+                        any = true;
+                    }
+                }
+                if (any) {
+                    voted++;
+                    if (argmax(votes) + 1 != set.cl(row)) {
+                        errors++;
+                    }
+                }
+            }
+            oobError = voted == 0 ? Double.NaN : (double) errors / voted;
+        }
+
+        /**
+         * Class (1-based) most trees vote for; ties go to the smaller class.
+         */
+        int predict(int[] features) {
+            int[] votes = new int[K];
+            for (DecisionTree tree : trees) {
+                votes[tree.predict(features) - 1]++;
+            }
+            return argmax(votes) + 1;
+        }
+
+        /**
+         * Classes (1-based) of many rows, scoring each tree's compiled form over the whole
+         * batch before moving on to the next tree.
+         */
+        int[] predictBatch(int[][] rows) {
+            int[][] votes = new int[rows.length][K];
+            for (FlatTree tree : flat) {
+                int[] cl = tree.predictBatch(rows);
+                for (int i = 0; i < rows.length; i++) {
+                    votes[i][cl[i] - 1]++;
+                }
+            }
+            int[] result = new int[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                result[i] = argmax(votes[i]) + 1;
+            }
+            return result;
+        }
+
+        List<FlatTree> flatten() {
+            return Collections.unmodifiableList(Arrays.asList(flat));
+        }
+
+        /**
+         * Share of the training rows misclassified by a vote of the trees that did not see
+         * them; NaN until trained or if every row was in every sample.
+         */
+        double oobError() {
+            return oobError;
+        }
+
+        private static int argmax(int[] votes) {
+            int best = 0;
+            for (int i = 1; i < votes.length; i++) {
+                if (votes[i] > votes[best]) {
+                    best = i;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Gradient-boosted regression trees over the binned features of a {@link TrainingSet}:
+     * logistic loss for two classes, softmax over one score per class otherwise. Each round
+     * fits one tree per score to the loss gradients of a random subsample of the rows, with
+     * the histogram split search of {@link DecisionTree} generalized from class counts to
+     * gradient and hessian sums. A holdout share of the rows stops training once its loss
+     * has not improved for {@link Params#earlyStopping} rounds.
+     */
+    public static class GradientBoosting {
+        static final class Params {
+            int rounds = 100;
+            double learningRate = 0.1;
+            /**
+             * Maximum number of levels of every tree, the root included, as in
+             * {@link DecisionTree.Params#maxDepth}.
+             */
+            int maxDepth = 7;
+            /**
+             * L2 penalty on leaf scores.
+             */
+            double lambda = 1;
+            /**
+             * Smallest hessian sum a child may have.
+             */
+            double minChildWeight = 1e-3;
+            double subsample = 1;
+            double holdout = 0.1;
+            int earlyStopping = 10;
+            long seed = 1;
+
+            /**
+             * Rejects settings no model can be trained with.
+             */
+            Params validate() {
+                if (rounds < 0) {
+                    throw new IllegalArgumentException("rounds must be non-negative: " + rounds);
+                }
+                if (!(learningRate > 0)) {
+                    throw new IllegalArgumentException("learningRate must be positive: " + learningRate);
+                }
+                if (maxDepth < 1) {
+                    throw new IllegalArgumentException("maxDepth must be at least 1: " + maxDepth);
+                }
+                if (!(lambda >= 0) || !(minChildWeight >= 0)) {
+                    throw new IllegalArgumentException("lambda and minChildWeight must be non-negative");
+                }
+                if (!(subsample > 0 && subsample <= 1)) {
+                    throw new IllegalArgumentException("subsample must be in (0, 1]: " + subsample);
+                }
+                if (!(holdout >= 0 && holdout < 1)) {
+                    throw new IllegalArgumentException("holdout must be in [0, 1): " + holdout);
+                }
+                if (earlyStopping < 1) {
+                    throw new IllegalArgumentException("earlyStopping must be at least 1: " + earlyStopping);
+                }
+                return this;
+            }
+        }
+
+        /**
+         * Regression tree with nodes in preorder. Inner node {@code i} sends a row left when
+         * its {@code feature[i]} is at most {@code threshold[i]}, or, for a training row, when
+         * its bin is at most {@code bin[i]}; leaves have {@code feature[i] == -1} and score
+         * {@code value[i]}, already scaled by the learning rate.
+         */
+        static final class RegressionTree {
+            final int[] feature;
+            final int[] bin;
+            final double[] threshold;
+            final int[] left;
+            final int[] right;
+            final double[] value;
+
+            RegressionTree(int size) {
+                feature = new int[size];
+                bin = new int[size];
+                threshold = new double[size];
+                left = new int[size];
+                right = new int[size];
+                value = new double[size];
+            }
+
+            double predict(int[] row) {
+                int v = 0;
+                while (feature[v] >= 0) {
+                    v = row[feature[v]] <= threshold[v] ? left[v] : right[v];
+                }
+                return value[v];
+            }
+
+            double predictBinned(TrainingSet set, int row) {
+                int v = 0;
+                while (feature[v] >= 0) {
+                    v = set.bin(feature[v], row) <= bin[v] ? left[v] : right[v];
+                }
+                return value[v];
+            }
+        }
+
+        /**
+         * Grows one regression tree on {@code rows[from, to)} of a training set, with the row
+         * partitioning and bin histograms of the histogram mode of {@link DecisionTree}; the
+         * histograms hold gradient and hessian sums, {@code hist[f][2 * b]} and
+         * {@code hist[f][2 * b + 1]}.
+         */
+        private final class TreeBuilder implements BinHistograms.Statistic {
+            private final TrainingSet set;
+            private final double[] g;
+            private final double[] h;
+            private final int[] rows;
+            private final RowPartition partition;
+            private final RegressionTree tree;
+            private int size;
+
+            TreeBuilder(TrainingSet set, double[] g, double[] h, int[] rows) {
+                this.set = set;
+                this.g = g;
+                this.h = h;
+                this.rows = rows;
+                this.partition = new RowPartition(set.size(), rows.length);
+                this.tree = new RegressionTree(capacity(params.maxDepth, rows.length));
+            }
+
+            /**
+             * Nodes a tree of {@code maxDepth} levels over {@code rows} rows can have: no more
+             * than a full binary tree of that depth, nor than one split per row. Depths too
+             * large to shift are bounded by the rows alone.
+             */
+            private int capacity(int maxDepth, int rows) {
+                long bound = 2L * rows + 1;
+                return (int) (maxDepth >= 62 ? bound : Math.min((1L << maxDepth) - 1, bound));
+            }
+
+            @Override
+            public int width() {
+                return 2;
+            }
+
+            @Override
+            public void add(double[] hist, int offset, int row) {
+                hist[offset] += g[row];
+                hist[offset + 1] += h[row];
+            }
+
+            RegressionTree build() {
+                double gSum = 0;
+                double hSum = 0;
+                for (int row : rows) {
+                    gSum += g[row];
+                    hSum += h[row];
+                }
+                grow(0, rows.length, 1, BinHistograms.build(set, rows, 0, rows.length, this), gSum, hSum);
+                return tree;
+            }
+
+            /**
+             * Grows the node over {@code rows[from, to)} on level {@code depth}, 1 being the root.
+             */
+            private int grow(int from, int to, int depth, double[][] hist, double gSum, double hSum) {
+                int v = size++;
+                tree.feature[v] = -1;
+                tree.value[v] = -gSum / (hSum + params.lambda) * params.learningRate;
+                if (depth >= params.maxDepth || to - from < 2) {
+                    return v;
+                }
+
+                double parent = gSum * gSum / (hSum + params.lambda);
+                IntStream features = IntStream.range(0, M);
+                if (to - from >= DecisionTree.PARALLEL_CUTOFF) {
+                    features = features.parallel();
+                }
+                double[][] gains = features.mapToObj(f -> bestBin(hist[f], gSum, hSum, parent)).toArray(double[][]::new);
+                int bestFeature = -1;
+                for (int f = 0; f < M; f++) {
+                    if (gains[f] != null && (bestFeature < 0 || gains[f][0] > gains[bestFeature][0])) {
+                        bestFeature = f;
+                    }
+                }
+                if (bestFeature < 0) {
+                    return v;
+                }
+                int f = bestFeature;
+                int b = (int) gains[f][1];
+                double gLeft = gains[f][2];
+                double hLeft = gains[f][3];
+
+                for (int i = from; i < to; i++) {
+                    partition.goesLeft[rows[i]] = set.bin(f, rows[i]) <= b;
+                }
+                int mid = partition.partition(rows, from, to);
+                double[][][] children = BinHistograms.children(set, rows, from, mid, to, hist, this);
+                double[][] leftHist = children[0];
+                double[][] rightHist = children[1];
+
+                tree.feature[v] = f;
+                tree.bin[v] = b;
+                tree.threshold[v] = set.binMax[f][b];
+                tree.left[v] = grow(from, mid, depth + 1, leftHist, gLeft, hLeft);
+                tree.right[v] = grow(mid, to, depth + 1, rightHist, gSum - gLeft, hSum - hLeft);
+                return v;
+            }
+
+            /**
+             * Best bin boundary of one feature as {gain, bin, left gradient sum, left hessian
+             * sum}, or null if no boundary gains anything.
+             */
+            private double[] bestBin(double[] hf, double gSum, double hSum, double parent) {
+                double[] best = null;
+                double gLeft = 0;
+                double hLeft = 0;
+                for (int b = 0; b + 1 < hf.length / 2; b++) {
+                    gLeft += hf[2 * b];
+                    hLeft += hf[2 * b + 1];
+                    double gRight = gSum - gLeft;
+                    double hRight = hSum - hLeft;
+                    if (hLeft < params.minChildWeight || hRight < params.minChildWeight) {
+                        continue;
+                    }
+                    double gain = gLeft * gLeft / (hLeft + params.lambda)
+                            + gRight * gRight / (hRight + params.lambda) - parent;
+                    if (gain > 0 && (best == null || gain > best[0])) {
+                        best = new double[]{gain, b, gLeft, hLeft};
+                    }
+                }
+                return best;
+            }
+        }
+
+        private final int M;
+        private final int K;
+        private final Params params;
+        /**
+         * Number of scores per row: one log-odds of class 2 when there are two classes,
+         * otherwise one per class.
+         */
+        private final int outputs;
+        private double[] base;
+        private List<RegressionTree[]> rounds = new ArrayList<>();
+        private double holdoutLoss = Double.NaN;
+
+        GradientBoosting(int m, int k, Params params) {
+            this.M = m;
+            this.K = k;
+            this.params = params;
+            this.outputs = k == 2 ? 1 : k;
+            params.validate();
+        }
+
+        /**
+         * Trains on a training set that was built with histogram bins.
+         */
+        void train(TrainingSet set) {
+            if (set.bins == null) {
+                throw new IllegalArgumentException("gradient boosting needs a binned training set");
+            }
+            int n = set.size();
+            Random random = new Random(params.seed);
+            boolean[] held = new boolean[n];
+            for (int row = 0; row < n; row++) {
+                held[row] = random.nextDouble() < params.holdout;
+            }
+            int[] trainRows = IntStream.range(0, n).filter(row -> !held[row]).toArray();
+            int[] holdoutRows = IntStream.range(0, n).filter(row -> held[row]).toArray();
+
+            base = baseScores(set, trainRows);
+            double[][] score = new double[outputs][n];
+            for (int c = 0; c < outputs; c++) {
+                Arrays.fill(score[c], base[c]);
+            }
+            double[][] g = new double[outputs][n];
+            double[][] h = new double[outputs][n];
+            rounds = new ArrayList<>();
+            double bestLoss = Double.POSITIVE_INFINITY;
+            int bestRounds = 0;
+
+            for (int round = 0; round < params.rounds; round++) {
+                Arrays.stream(trainRows).parallel().forEach(row -> gradients(set.cl(row), row, score, g, h));
+                Random sampler = new Random(params.seed + round + 1);
+                int[] sample = params.subsample >= 1 ? trainRows
+                        : Arrays.stream(trainRows).filter(row -> sampler.nextDouble() < params.subsample).toArray();
+                if (sample.length == 0) {
+                    continue;
+                }
+                RegressionTree[] trees = IntStream.range(0, outputs).parallel()
+                        .mapToObj(c -> new TreeBuilder(set, g[c], h[c], sample.clone()).build())
+                        .toArray(RegressionTree[]::new);
+                rounds.add(trees);
+                IntStream.range(0, n).parallel().forEach(row -> {
+                    for (int c = 0; c < outputs; c++) {
+                        score[c][row] += trees[c].predictBinned(set, row);
+                    }
+                });
+
+                if (holdoutRows.length > 0) {
+                    double loss = Arrays.stream(holdoutRows).parallel()
+                            .mapToDouble(row -> loss(set.cl(row), row, score)).sum() / holdoutRows.length;
+                    if (loss < bestLoss) {
+                        bestLoss = loss;
+                        bestRounds = rounds.size();
+                    } else if (rounds.size() - bestRounds >= params.earlyStopping) {
+                        break;
+                    }
+                }
+            }
+            if (holdoutRows.length > 0) {
+                rounds = new ArrayList<>(rounds.subList(0, bestRounds));
+                holdoutLoss = bestLoss;
+            }
+        }
+
+        /**
+         * Log-odds, or log-priors, of the classes over the training rows, smoothed by one.
+         */
+        private double[] baseScores(TrainingSet set, int[] trainRows) {
+            double[] counts = new double[K];
+            for (int row : trainRows) {
+                counts[set.cl(row) - 1]++;
+            }
+            if (outputs == 1) {
+                return new double[]{Math.log((counts[1] + 1) / (counts[0] + 1))};
+            }
+            double[] base = new double[K];
+            for (int c = 0; c < K; c++) {
+                base[c] = Math.log((counts[c] + 1) / (trainRows.length + K));
+            }
+            return base;
+        }
+
+        private void gradients(int cl, int row, double[][] score, double[][] g, double[][] h) {
+            if (outputs == 1) {
+                double p = 1 / (1 + Math.exp(-score[0][row]));
+                g[0][row] = p - (cl == 2 ? 1 : 0);
+                h[0][row] = Math.max(p * (1 - p), 1e-16);
+                return;
+            }
+            double[] p = softmax(score, row);
+            for (int c = 0; c < K; c++) {
+                g[c][row] = p[c] - (cl == c + 1 ? 1 : 0);
+                h[c][row] = Math.max(p[c] * (1 - p[c]), 1e-16);
+            }
+        }
+
+        private double loss(int cl, int row, double[][] score) {
+            if (outputs == 1) {
+                double p = 1 / (1 + Math.exp(-score[0][row]));
+                return -Math.log(Math.max(cl == 2 ? p : 1 - p, 1e-15));
+            }
+            return -Math.log(Math.max(softmax(score, row)[cl - 1], 1e-15));
+        }
+
+        private double[] softmax(double[][] score, int row) {
+            double max = Double.NEGATIVE_INFINITY;
+            for (int c = 0; c < K; c++) {
+                max = Math.max(max, score[c][row]);
+            }
+            double[] p = new double[K];
+            double sum = 0;
+            for (int c = 0; c < K; c++) {
+                p[c] = Math.exp(score[c][row] - max);
+                sum += p[c];
+            }
+            for (int c = 0; c < K; c++) {
+                p[c] /= sum;
+            }
+            return p;
+        }
+
+        /**
+         * Class (1-based) with the highest score.
+         */
+        int predict(int[] row) {
+            double[] score = base.clone();
+            for (RegressionTree[] trees : rounds) {
+                for (int c = 0; c < outputs; c++) {
+                    score[c] += trees[c].predict(row);
+                }
+            }
+            if (outputs == 1) {
+                return score[0] > 0 ? 2 : 1;
+            }
+            int best = 0;
+            for (int c = 1; c < K; c++) {
+                if (score[c] > score[best]) {
+                    best = c;
+                }
+            }
+            return best + 1;
+        }
+
+        int rounds() {
+            return rounds.size();
+        }
+
+        /**
+         * Mean log loss on the holdout rows after the kept rounds; NaN without a holdout.
+         */
+        double holdoutLoss() {
+            return holdoutLoss;
+        }
+    }
+
     private static BufferedReader br;
     private static StringTokenizer in;
 
@@ -245,23 +1651,120 @@ public class Tree {
     }
 
     public static void main(String[] args) throws Exception {
+        DecisionTree.Params params = new DecisionTree.Params();
+        int forest = 0;
+        GradientBoosting.Params boosting = null;
+        Path save = null;
+        Path load = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.equals("--histogram")) {
+                params.histogram = true;
+            } else if (arg.startsWith("--max-depth=")) {
+                params.maxDepth = Integer.parseInt(value);
+            } else if (arg.startsWith("--min-samples-leaf=")) {
+                params.minSamplesLeaf = Integer.parseInt(value);
+            } else if (arg.startsWith("--min-impurity-decrease=")) {
+                params.minImpurityDecrease = Double.parseDouble(value);
+            } else if (arg.startsWith("--max-leaves=")) {
+                params.maxLeaves = Integer.parseInt(value);
+            } else if (arg.startsWith("--ccp-alpha=")) {
+                params.ccpAlpha = Double.parseDouble(value);
+            } else if (arg.startsWith("--max-features=")) {
+                params.maxFeatures = Integer.parseInt(value);
+            } else if (arg.startsWith("--forest=")) {
+                forest = Integer.parseInt(value);
+            } else if (arg.startsWith("--boost=")) {
+                boosting = boosting == null ? new GradientBoosting.Params() : boosting;
+                boosting.rounds = Integer.parseInt(value);
+            } else if (arg.startsWith("--learning-rate=")) {
+                boosting = boosting == null ? new GradientBoosting.Params() : boosting;
+                boosting.learningRate = Double.parseDouble(value);
+            } else if (arg.startsWith("--subsample=")) {
+                boosting = boosting == null ? new GradientBoosting.Params() : boosting;
+                boosting.subsample = Double.parseDouble(value);
+            } else if (arg.startsWith("--boost-depth=")) {
+                boosting = boosting == null ? new GradientBoosting.Params() : boosting;
+                boosting.maxDepth = Integer.parseInt(value);
+            } else if (arg.startsWith("--save=")) {
+                save = Paths.get(value);
+            } else if (arg.startsWith("--load=")) {
+                load = Paths.get(value);
+            }
+        }
+
+        params.validate();
+        if (boosting != null) {
+            boosting.validate();
+        }
+
         br = new BufferedReader(new InputStreamReader(System.in));
         int m = Integer.parseInt(nextToken());
         int k = Integer.parseInt(nextToken());
         int n = Integer.parseInt(nextToken());
 
-        List<Item> trainItems = new ArrayList<>();
+        int[][] rows = new int[n][m];
+        int[] labels = new int[n];
         for (int i = 0; i < n; i++) {
-            List<Integer> f = new ArrayList<>();
             for (int j = 0; j < m; j++) {
-                f.add(Integer.parseInt(nextToken()));
+                rows[i][j] = Integer.parseInt(nextToken());
             }
-            int label = Integer.parseInt(nextToken());
-            trainItems.add(new Item(f, label));
+            labels[i] = Integer.parseInt(nextToken());
         }
 
-        DecisionTree tree = new DecisionTree(n, m, k);
-        tree.train(trainItems);
+        if (load != null) {
+            MappedForest model = MappedForest.load(load);
+            if (model.features() != m) {
+                throw new IllegalArgumentException("model expects " + model.features() + " features, input has " + m);
+            }
+            StringBuilder out = new StringBuilder();
+            for (int[] row : rows) {
+                out.append(model.predict(row)).append('\n');
+            }
+            System.out.print(out);
+            return;
+        }
+
+        int[][] columns = new int[m][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < m; j++) {
+                columns[j][i] = rows[i][j];
+            }
+        }
+        TrainingSet set = new TrainingSet(columns, labels, params.histogram || boosting != null);
+
+        if (boosting != null) {
+            GradientBoosting gbt = new GradientBoosting(m, k, boosting);
+            gbt.train(set);
+            System.err.printf("rounds: %d, holdout log loss: %.4f%n", gbt.rounds(), gbt.holdoutLoss());
+            StringBuilder out = new StringBuilder();
+            for (int[] row : rows) {
+                out.append(gbt.predict(row)).append('\n');
+            }
+            System.out.print(out);
+            return;
+        }
+
+        if (forest > 0) {
+            RandomForest rf = new RandomForest(m, k, forest, params, 1);
+            rf.train(set);
+            System.err.printf("OOB error: %.4f%n", rf.oobError());
+            if (save != null) {
+                MappedForest.save(save, m, k, rf.flatten());
+            }
+            StringBuilder out = new StringBuilder();
+            for (int cl : rf.predictBatch(rows)) {
+                out.append(cl).append('\n');
+            }
+            System.out.print(out);
+            return;
+        }
+
+        DecisionTree tree = new DecisionTree(n, m, k, params);
+        tree.train(set);
+        if (save != null) {
+            MappedForest.save(save, m, k, Collections.singletonList(tree.flatten()));
+        }
         tree.print();
     }
 